@@ -0,0 +1,107 @@
+package nachos.bench;
+
+import nachos.machine.*;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Measures the cost of a user exception taken on every memory reference. The
+ * program alternates loads between two data pages, and the exception handler
+ * maps only the page that just faulted, so every load faults. With a page
+ * table the loads take page faults; with a TLB they take TLB misses.
+ *
+ * <p>
+ * The fault path is meant to make no garbage. Run with <tt>-prof gc</tt> and
+ * check that <tt>gc.alloc.rate.norm</tt> stays at (about) zero bytes per
+ * fault.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class FaultBenchmark {
+    /** <tt>true</tt> to take TLB misses instead of page faults. */
+    @Param({"false", "true"})
+    public boolean usingTLB;
+
+    @Setup
+    public void setup() {
+	harness = new Harness(Harness.settings(usingTLB), numPhysPages);
+	processor = harness.processor;
+
+	byte[] memory = processor.getMemory();
+	for (int i=0; i<program.length; i++)
+	    Lib.bytesFromInt(memory, i*4, program[i]);
+
+	for (int vpn=0; vpn<numPhysPages; vpn++)
+	    pageTable[vpn] = new TranslationEntry(vpn, vpn, vpn == 0, false,
+						  false, false);
+
+	if (usingTLB)
+	    processor.writeTLBEntry(1, pageTable[0]);
+	else
+	    processor.setPageTable(pageTable);
+
+	processor.setExceptionHandler(new Runnable() {
+		public void run() { handleFault(); }
+	    });
+	processor.writeRegister(Processor.regPC, 0);
+    }
+
+    private void handleFault() {
+	int cause = processor.readRegister(Processor.regCause);
+	int vpn = Processor.pageFromAddress(
+	    processor.readRegister(Processor.regBadVAddr));
+
+	switch (cause) {
+	case Processor.exceptionPageFault:
+	    pageTable[vpn].valid = true;
+	    pageTable[3-vpn].valid = false;
+	    break;
+	case Processor.exceptionTLBMiss:
+	    pageTable[vpn].valid = true;
+	    processor.writeTLBEntry(0, pageTable[vpn]);
+	    break;
+	default:
+	    throw new IllegalStateException("unexpected exception " + cause);
+	}
+
+	if (++faults == faultsPerInvocation) {
+	    faults = 0;
+	    harness.stop();
+	}
+    }
+
+    /**
+     * Take <tt>faultsPerInvocation</tt> faults.
+     */
+    @Benchmark
+    @OperationsPerInvocation(faultsPerInvocation)
+    public void fault() {
+	harness.run();
+    }
+
+    private Harness harness;
+    private Processor processor;
+    private TranslationEntry[] pageTable = new TranslationEntry[numPhysPages];
+    private int faults = 0;
+
+    private static final int numPhysPages = 3;
+    private static final int faultsPerInvocation = 1000;
+
+    /**
+     * <pre>
+     * loop:	lw	$8, 0x400($0)
+     *		lw	$8, 0x800($0)
+     *		j	loop
+     *		nop
+     * </pre>
+     */
+    private static final int[] program = {
+	0x8C080400, 0x8C080800, 0x08000000, 0x00000000
+    };
+}
@@ -0,0 +1,76 @@
+package nachos.bench;
+
+import nachos.machine.*;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Measures the cost of a TCB context switch: two Java threads pass the
+ * right to run back and forth through a pair of <tt>Handoff</tt>s, the same
+ * way <tt>KThread.selfTest()</tt>'s <tt>PingTest</tt> threads yield to each
+ * other. Each operation is one round trip, so two handoffs.
+ *
+ * <p>
+ * <tt>handoff</tt> and <tt>spinCount</tt> correspond to <tt>TCB.handoff</tt>
+ * and <tt>TCB.spinCount</tt> in <tt>nachos.conf</tt>.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class HandoffBenchmark {
+    @Param({"monitor", "park"})
+    public String handoff;
+
+    @Param({"0", "1000"})
+    public int spinCount;
+
+    @Setup
+    public void setup() {
+	boolean park = handoff.equals("park");
+	ping = new Handoff(park, spinCount);
+	pong = new Handoff(park, spinCount);
+
+	pinger = Thread.currentThread();
+	ponger = new Thread(new Runnable() {
+		public void run() { pong(); }
+	    }, "ponger");
+	ponger.setDaemon(true);
+	ponger.start();
+    }
+
+    private void pong() {
+	while (true) {
+	    pong.await();
+	    pong.clear();
+	    if (done)
+		return;
+	    ping.signal(pinger);
+	}
+    }
+
+    @TearDown
+    public void tearDown() throws InterruptedException {
+	done = true;
+	pong.signal(ponger);
+	ponger.join();
+    }
+
+    /**
+     * Hand off to the other thread and wait for it to hand back.
+     */
+    @Benchmark
+    public void roundTrip() {
+	ping.clear();
+	pong.signal(ponger);
+	ping.await();
+    }
+
+    private Handoff ping, pong;
+    private Thread pinger, ponger;
+    private volatile boolean done = false;
+}
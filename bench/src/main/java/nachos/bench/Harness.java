@@ -0,0 +1,156 @@
+package nachos.bench;
+
+import nachos.machine.*;
+import nachos.security.*;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.Map;
+import java.util.TreeMap;
+import java.security.PrivilegedAction;
+import java.security.PrivilegedExceptionAction;
+import java.security.PrivilegedActionException;
+
+/**
+ * A headless Nachos machine: an <tt>Interrupt</tt> and a <tt>Processor</tt>
+ * with their own <tt>Privilege</tt>, but no <tt>Machine</tt>, kernel, threads
+ * or security manager. Benchmarks install an exception handler, put a program
+ * in memory, and call <tt>run()</tt>, which returns when the handler calls
+ * <tt>stop()</tt>.
+ *
+ * <p>
+ * <tt>Config</tt> can only be loaded once per JVM, so every harness in a JVM
+ * must ask for the same configuration. JMH runs each parameter combination in
+ * its own fork, which keeps this from getting in the way.
+ */
+public class Harness {
+    /**
+     * Allocate a new headless machine.
+     *
+     * @param	settings	the <tt>nachos.conf</tt> entries to use.
+     *				<tt>Kernel.kernel</tt> decides whether the
+     *				processor uses a TLB.
+     * @param	numPhysPages	the number of pages of physical memory.
+     */
+    public Harness(Map<String, String> settings, int numPhysPages) {
+	configure(settings);
+
+	privilege = new HarnessPrivilege();
+	privilege.stats = new Stats();
+	interrupt = new Interrupt(privilege);
+	processor = new Processor(privilege, numPhysPages);
+    }
+
+    /**
+     * Return the configuration for a processor with or without a TLB.
+     *
+     * @param	usingTLB	<tt>true</tt> to use a software-managed TLB.
+     * @return	the <tt>nachos.conf</tt> entries.
+     */
+    public static Map<String, String> settings(boolean usingTLB) {
+	Map<String, String> settings = new TreeMap<String, String>();
+
+	settings.put("Kernel.kernel", usingTLB ? "nachos.vm.VMKernel"
+		     : "nachos.userprog.UserKernel");
+	settings.put("Processor.usingTLB", usingTLB ? "true" : "false");
+	return settings;
+    }
+
+    private static synchronized void configure(Map<String, String> settings) {
+	if (configured != null) {
+	    if (!configured.equals(settings))
+		throw new IllegalStateException("Config already loaded with "
+						+ configured);
+	    return;
+	}
+
+	try {
+	    File file = File.createTempFile("nachos", ".conf");
+	    file.deleteOnExit();
+
+	    FileWriter writer = new FileWriter(file);
+	    for (Map.Entry<String, String> entry : settings.entrySet())
+		writer.write(entry.getKey() + " = " + entry.getValue() + "\n");
+	    writer.close();
+
+	    Config.load(file.getPath());
+	}
+	catch (IOException e) {
+	    throw new IllegalStateException("cannot write config", e);
+	}
+
+	configured = new TreeMap<String, String>(settings);
+    }
+
+    /**
+     * Run the processor at the current PC until the exception handler calls
+     * <tt>stop()</tt>.
+     */
+    public void run() {
+	try {
+	    processor.run();
+	}
+	catch (Stop e) {
+	}
+    }
+
+    /**
+     * Make the current call to <tt>run()</tt> return. Only callable from the
+     * exception handler.
+     */
+    public void stop() {
+	throw stop;
+    }
+
+    /**
+     * Return the number of user instructions executed so far.
+     *
+     * @return	the number of instructions executed.
+     */
+    public long instructions() {
+	return privilege.stats.userTicks / Stats.UserTick;
+    }
+
+    /** The simulated processor. */
+    public final Processor processor;
+    /** The interrupt controller ticked by the processor. */
+    public final Interrupt interrupt;
+    /** Privileged access to the machine, including its <tt>Stats</tt>. */
+    public final Privilege privilege;
+
+    private static Map<String, String> configured = null;
+
+    private static final Stop stop = new Stop();
+
+    /** Unwinds <tt>Processor.run()</tt>; thrown without a stack trace. */
+    private static class Stop extends RuntimeException {
+	public Throwable fillInStackTrace() {
+	    return this;
+	}
+    }
+
+    private static class HarnessPrivilege extends Privilege {
+	public void doPrivileged(Runnable action) {
+	    action.run();
+	}
+
+	public Object doPrivileged(PrivilegedAction action) {
+	    return action.run();
+	}
+
+	public Object doPrivileged(PrivilegedExceptionAction action)
+	    throws PrivilegedActionException {
+	    try {
+		return action.run();
+	    }
+	    catch (Exception e) {
+		throw new PrivilegedActionException(e);
+	    }
+	}
+
+	public void exit(int exitStatus) {
+	    throw new IllegalStateException("exit(" + exitStatus + ")");
+	}
+    }
+}
@@ -0,0 +1,236 @@
+package nachos.bench;
+
+import nachos.machine.*;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Runs the bundled test programs on a headless processor, from entry point
+ * to <tt>exit()</tt>, once per operation. A tiny built-in kernel emulates
+ * the <tt>halt</tt>, <tt>exit</tt>, <tt>open</tt>, <tt>read</tt>,
+ * <tt>write</tt> and <tt>close</tt> system calls. <tt>cat</tt> reads a
+ * 16KB in-memory file, and its output is discarded.
+ *
+ * <p>
+ * Besides programs per second, the <tt>instructions</tt> and <tt>faults</tt>
+ * counters report user instructions and page faults or TLB misses per
+ * second. Run with <tt>-prof gc</tt> to get the allocation rate.
+ *
+ * <p>
+ * <tt>paging</tt> selects how the program's memory is mapped:
+ * <dl>
+ * <dt><tt>resident</tt>	<dd>a page table with every page valid.
+ * <dt><tt>demand</tt>	<dd>a page table with every page invalid until the
+ *				program faults on it.
+ * <dt><tt>tlb</tt>	<dd>a TLB refilled round-robin from a resident page
+ *				table.
+ * </dl>
+ *
+ * <p>
+ * <tt>blockExecution</tt> sets <tt>Processor.blockExecution</tt>; pass
+ * <tt>-p blockExecution=true,false</tt> to compare the two.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class InterpreterBenchmark {
+    @Param({"matmult", "sort", "cat"})
+    public String program;
+
+    @Param({"resident", "demand", "tlb"})
+    public String paging;
+
+    @Param({"false"})
+    public boolean blockExecution;
+
+    /** Per-iteration counters, reported by JMH as rates. */
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.OPERATIONS)
+    public static class Counters {
+	/** User instructions executed. */
+	public long instructions;
+	/** Page faults or TLB misses taken. */
+	public long faults;
+
+	@Setup(Level.Iteration)
+	public void reset() {
+	    instructions = 0;
+	    faults = 0;
+	}
+    }
+
+    @Setup
+    public void setup() throws IOException {
+	boolean usingTLB = paging.equals("tlb");
+
+	Map<String, String> settings = Harness.settings(usingTLB);
+	settings.put("Processor.blockExecution", "" + blockExecution);
+
+	loaded = new Program(program + ".coff",
+			     new String[] { program, "input.txt" });
+	harness = new Harness(settings, loaded.numPages);
+	processor = harness.processor;
+
+	pageTable = new TranslationEntry[loaded.numPages];
+	for (int vpn=0; vpn<loaded.numPages; vpn++)
+	    pageTable[vpn] = new TranslationEntry();
+
+	for (int i=0; i<input.length; i++)
+	    input[i] = (byte) ('a' + i%26);
+
+	processor.setExceptionHandler(new Runnable() {
+		public void run() { handleException(); }
+	    });
+
+	// make sure the emulated kernel is good enough to run the program
+	Counters counters = new Counters();
+	runProgram(counters);
+	if (exitStatus != expectedStatus())
+	    throw new IllegalStateException(program + " exited with status "
+					    + exitStatus);
+	if (program.equals("cat") && bytesWritten != input.length)
+	    throw new IllegalStateException("cat wrote " + bytesWritten
+					    + " bytes");
+    }
+
+    private int expectedStatus() {
+	return program.equals("matmult") ? 7220 : 0;
+    }
+
+    /**
+     * Run the program once, from its entry point to <tt>exit()</tt>.
+     */
+    @Benchmark
+    public int run(Counters counters) {
+	runProgram(counters);
+	return exitStatus;
+    }
+
+    private void runProgram(Counters counters) {
+	boolean valid = !paging.equals("demand");
+	for (int vpn=0; vpn<pageTable.length; vpn++) {
+	    TranslationEntry entry = pageTable[vpn];
+	    entry.vpn = entry.ppn = vpn;
+	    entry.valid = valid;
+	    entry.readOnly = loaded.readOnly[vpn];
+	    entry.used = entry.dirty = false;
+	}
+
+	if (paging.equals("tlb")) {
+	    for (int i=0; i<processor.getTLBSize(); i++)
+		processor.writeTLBEntry(i, invalidEntry);
+	}
+	else {
+	    processor.setPageTable(pageTable);
+	}
+
+	loaded.start(processor);
+	filePosition = -1;
+	bytesWritten = 0;
+	faults = 0;
+
+	long before = harness.instructions();
+	harness.run();
+
+	counters.instructions += harness.instructions() - before;
+	counters.faults += faults;
+    }
+
+    private void handleException() {
+	int cause = processor.readRegister(Processor.regCause);
+
+	switch (cause) {
+	case Processor.exceptionSyscall:
+	    handleSyscall();
+	    break;
+	case Processor.exceptionPageFault:
+	    faults++;
+	    pageTable[badVPN()].valid = true;
+	    break;
+	case Processor.exceptionTLBMiss:
+	    faults++;
+	    processor.writeTLBEntry(victim, pageTable[badVPN()]);
+	    victim = (victim+1) % processor.getTLBSize();
+	    break;
+	default:
+	    throw new IllegalStateException("unexpected "
+					    + Processor.exceptionNames[cause]);
+	}
+    }
+
+    private int badVPN() {
+	int vpn = Processor.pageFromAddress(
+	    processor.readRegister(Processor.regBadVAddr));
+
+	if (vpn >= pageTable.length)
+	    throw new IllegalStateException("bad address in " + program);
+	return vpn;
+    }
+
+    private void handleSyscall() {
+	int a0 = processor.readRegister(Processor.regA0);
+	int a1 = processor.readRegister(Processor.regA1);
+	int a2 = processor.readRegister(Processor.regA2);
+	int result = -1;
+
+	switch (processor.readRegister(Processor.regV0)) {
+	case syscallHalt:
+	case syscallExit:
+	    exitStatus = a0;
+	    harness.stop();
+	    return;
+	case syscallOpen:
+	    filePosition = 0;
+	    result = inputFD;
+	    break;
+	case syscallRead:
+	    if (a0 == inputFD && filePosition >= 0) {
+		result = Math.min(a2, input.length - filePosition);
+		System.arraycopy(input, filePosition, processor.getMemory(), a1,
+				 result);
+		filePosition += result;
+	    }
+	    break;
+	case syscallWrite:
+	    if (a0 == 1) {
+		result = a2;
+		bytesWritten += a2;
+	    }
+	    break;
+	case syscallClose:
+	    result = 0;
+	    break;
+	}
+
+	processor.writeRegister(Processor.regV0, result);
+	processor.advancePC();
+    }
+
+    private Harness harness;
+    private Processor processor;
+    private Program loaded;
+    private TranslationEntry[] pageTable;
+    private TranslationEntry invalidEntry = new TranslationEntry();
+    private int victim = 0;
+
+    private byte[] input = new byte[16*1024];
+    private int filePosition, bytesWritten, exitStatus;
+    private long faults;
+
+    private static final int inputFD = 2;
+
+    private static final int
+	syscallHalt = 0,
+	syscallExit = 1,
+	syscallOpen = 5,
+	syscallRead = 6,
+	syscallWrite = 7,
+	syscallClose = 8;
+}
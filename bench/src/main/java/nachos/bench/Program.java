@@ -0,0 +1,127 @@
+package nachos.bench;
+
+import nachos.machine.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+
+/**
+ * A user program loaded from a COFF executable into a memory image, laid out
+ * the same way <tt>UserProcess.load()</tt> lays it out: the sections starting
+ * at page 0, then the stack, then one page holding the arguments. The image
+ * is built once and copied into physical memory (identity mapped) each time
+ * the program is started.
+ *
+ * <p>
+ * <tt>nachos.machine.Coff</tt> cannot be used here, since it needs a running
+ * <tt>Machine</tt>.
+ */
+public class Program {
+    /**
+     * Load the named program from the directory given by the
+     * <tt>nachos.bench.test</tt> system property (<tt>../test</tt> by
+     * default).
+     *
+     * @param	name	the name of the COFF file, e.g. <tt>matmult.coff</tt>.
+     * @param	args	the arguments, including <tt>argv[0]</tt>.
+     */
+    public Program(String name, String[] args) throws IOException {
+	File dir = new File(System.getProperty("nachos.bench.test", "../test"));
+	byte[] file = Files.readAllBytes(new File(dir, name).toPath());
+
+	if (file.length < headerLength+aoutHeaderLength ||
+	    Lib.bytesToUnsignedShort(file, 0) != 0x0162)
+	    throw new IOException(name + " is not a MIPS COFF executable");
+
+	int numSections = Lib.bytesToUnsignedShort(file, 2);
+	int optionalHeaderLength = Lib.bytesToUnsignedShort(file, 16);
+	entryPoint = Lib.bytesToInt(file, headerLength+16);
+
+	// first pass: find out how many pages the sections cover
+	int sectionPages = 0;
+	for (int s=0; s<numSections; s++) {
+	    int header = headerLength + optionalHeaderLength +
+		s*sectionHeaderLength;
+	    int vaddr = Lib.bytesToInt(file, header+12);
+	    int size = Lib.bytesToInt(file, header+16);
+
+	    if (vaddr != sectionPages*pageSize)
+		throw new IOException(name + " is fragmented");
+	    sectionPages += Lib.divRoundUp(size, pageSize);
+	}
+
+	initialSP = (sectionPages+stackPages)*pageSize;
+	numPages = sectionPages + stackPages + 1;
+	image = new byte[numPages*pageSize];
+	readOnly = new boolean[numPages];
+
+	// second pass: copy the initialized sections into the image
+	for (int s=0; s<numSections; s++) {
+	    int header = headerLength + optionalHeaderLength +
+		s*sectionHeaderLength;
+	    int vaddr = Lib.bytesToInt(file, header+12);
+	    int size = Lib.bytesToInt(file, header+16);
+	    int contentOffset = Lib.bytesToInt(file, header+20);
+	    int flags = Lib.bytesToInt(file, header+36) & 0x0FFF;
+
+	    if (flags != 0x0080)
+		System.arraycopy(file, contentOffset, image, vaddr, size);
+
+	    if (flags == 0x0020 || flags == 0x0100) {
+		for (int i=0; i<Lib.divRoundUp(size, pageSize); i++)
+		    readOnly[vaddr/pageSize + i] = true;
+	    }
+	}
+
+	// the arguments go in the last page
+	int entryOffset = (numPages-1)*pageSize;
+	int stringOffset = entryOffset + args.length*4;
+
+	argc = args.length;
+	argv = entryOffset;
+
+	for (int i=0; i<args.length; i++) {
+	    byte[] arg = args[i].getBytes();
+
+	    Lib.bytesFromInt(image, entryOffset, stringOffset);
+	    entryOffset += 4;
+	    System.arraycopy(arg, 0, image, stringOffset, arg.length);
+	    stringOffset += arg.length + 1;
+	}
+    }
+
+    /**
+     * Copy this program into physical memory at address 0 and point the
+     * processor at its entry point.
+     *
+     * @param	processor	the processor to run the program on. Must have
+     *				at least <tt>numPages</tt> pages of memory.
+     */
+    public void start(Processor processor) {
+	System.arraycopy(image, 0, processor.getMemory(), 0, image.length);
+
+	for (int i=0; i<Processor.numUserRegisters; i++)
+	    processor.writeRegister(i, 0);
+
+	processor.writeRegister(Processor.regPC, entryPoint);
+	processor.writeRegister(Processor.regSP, initialSP);
+	processor.writeRegister(Processor.regA0, argc);
+	processor.writeRegister(Processor.regA1, argv);
+    }
+
+    /** The number of pages in the program's address space. */
+    public final int numPages;
+    /** <tt>readOnly[vpn]</tt> is <tt>true</tt> for read-only pages. */
+    public final boolean[] readOnly;
+
+    private byte[] image;
+    private int entryPoint, initialSP, argc, argv;
+
+    private static final int pageSize = Processor.pageSize;
+    private static final int stackPages = 8;
+
+    private static final int headerLength = 20;
+    private static final int aoutHeaderLength = 28;
+    private static final int sectionHeaderLength = 40;
+}
@@ -0,0 +1,104 @@
+// PART OF THE MACHINE SIMULATION. DO NOT CHANGE.
+
+package nachos.machine;
+
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A flag that one Java thread waits on until another sets it. Every TCB has
+ * one, which is set when its thread ought to run; a context switch clears
+ * the flag of the current TCB, sets the flag of the next one, and waits for
+ * its own to be set again. Since only one TCB runs at a time, each flag has
+ * at most one waiter and one signaller.
+ *
+ * <p>
+ * A handoff either waits on its own monitor, with <tt>wait()</tt> and
+ * <tt>notify()</tt>, or parks the waiting thread with
+ * <tt>LockSupport.park()</tt>, in which case setting the flag takes no lock
+ * at all. A parking handoff can also spin for a while before parking, which
+ * pays off when the signalling thread is running on another processor.
+ */
+public final class Handoff {
+    /**
+     * Allocate a new, cleared handoff.
+     *
+     * @param	park		<tt>true</tt> to park the waiting thread instead
+     *				of waiting on a monitor.
+     * @param	spinCount	the number of times a parking handoff checks
+     *				the flag before parking.
+     */
+    public Handoff(boolean park, int spinCount) {
+	Lib.assertTrue(spinCount >= 0);
+
+	this.park = park;
+	this.spinCount = park ? spinCount : 0;
+    }
+
+    /**
+     * Clear the flag, so that the next call to <tt>await()</tt> blocks until
+     * <tt>signal()</tt> is called.
+     */
+    public void clear() {
+	set = false;
+    }
+
+    /**
+     * Test whether the flag is set.
+     *
+     * @return	<tt>true</tt> if the flag is set.
+     */
+    public boolean isSet() {
+	return set;
+    }
+
+    /**
+     * Set the flag and wake up the waiting thread.
+     *
+     * @param	waiter	the thread that waits on this handoff. Only used when
+     *			parking.
+     */
+    public void signal(Thread waiter) {
+	if (park) {
+	    set = true;
+	    LockSupport.unpark(waiter);
+	}
+	else {
+	    signalMonitor();
+	}
+    }
+
+    /**
+     * Wait until the flag is set. Returns immediately if it is already set.
+     */
+    public void await() {
+	if (park) {
+	    for (int i=0; i<spinCount; i++) {
+		if (set)
+		    return;
+	    }
+
+	    // unpark() before park() leaves a permit, so no wakeup is lost
+	    while (!set)
+		LockSupport.park(this);
+	}
+	else {
+	    waitOnMonitor();
+	}
+    }
+
+    private synchronized void waitOnMonitor() {
+	while (!set) {
+	    try { wait(); }
+	    catch (InterruptedException e) { }
+	}
+    }
+
+    private synchronized void signalMonitor() {
+	set = true;
+	notify();
+    }
+
+    private final boolean park;
+    private final int spinCount;
+    private volatile boolean set = false;
+}
@@ -4,9 +4,7 @@ package nachos.machine;
 
 import nachos.security.*;
 
-import java.util.TreeSet;
-import java.util.Iterator;
-import java.util.SortedSet;
+import java.util.Arrays;
 
 /**
  * The <tt>Interrupt</tt> class emulates low-level interrupt hardware. The
@@ -53,7 +51,7 @@ public final class Interrupt {
 	privilege.interrupt = new InterruptPrivilege();
 	
 	enabled = false;
-	pending = new TreeSet<PendingInterrupt>();
+	pending = new PendingInterrupt[8];
     }
 
     /**
@@ -120,17 +118,62 @@ public final class Interrupt {
 	return !enabled;
     }
 
+    /**
+     * Skip simulated time ahead to just before the next pending interrupt.
+     * The kernel calls this when no thread is ready to run, since nothing can
+     * happen until an interrupt occurs anyway.
+     *
+     * <p>
+     * Time jumps by whole kernel ticks, to the last tick before the interrupt
+     * is due, and the skipped time counts as kernel time. The next tick (e.g.
+     * when interrupts are re-enabled) then invokes the interrupt at exactly
+     * the time it would have been invoked had the kernel spun one tick at a
+     * time, so skipping does not change the simulation.
+     *
+     * <p>
+     * Interrupts must be disabled. If no interrupts are pending, this does
+     * nothing.
+     */
+    public void idle() {
+	Lib.assertTrue(disabled());
+
+	if (nextDue == Long.MAX_VALUE)
+	    return;
+
+	Stats stats = privilege.stats;
+	long skipped = (nextDue - stats.totalTicks - 1) / Stats.KernelTick;
+
+	if (skipped > 0) {
+	    skipped *= Stats.KernelTick;
+	    stats.kernelTicks += skipped;
+	    stats.totalTicks += skipped;
+
+	    if (Lib.test(dbgInt))
+		System.out.println("== Idle until " + stats.totalTicks + " ==");
+	}
+    }
+
     private void schedule(long when, String type, Runnable handler) {
 	Lib.assertTrue(when>0);
 	
 	long time = privilege.stats.totalTicks + when;
-	PendingInterrupt toOccur = new PendingInterrupt(time, type, handler);
 
-	Lib.debug(dbgInt,
-		  "Scheduling the " + type +
-		  " interrupt handler at time = " + time);
+	PendingInterrupt toOccur = freeList;
+	if (toOccur != null)
+	    freeList = toOccur.nextFree;
+	else
+	    toOccur = new PendingInterrupt();
+
+	toOccur.time = time;
+	toOccur.type = type;
+	toOccur.handler = handler;
+	toOccur.id = numPendingInterruptsCreated++;
 
-	pending.add(toOccur);
+	if (Lib.test(dbgInt))
+	    System.out.println("Scheduling the " + type +
+			       " interrupt handler at time = " + time);
+
+	insert(toOccur);
     }
 
     private void tick(boolean inKernelMode) {
@@ -153,6 +196,30 @@ public final class Interrupt {
 	enabled = true;
     }
 
+    private void tickUser(int count) {
+	Lib.assertTrue(count > 0);
+
+	// let the debug output show every tick
+	if (Lib.test(dbgInt)) {
+	    for (int i=0; i<count; i++)
+		tick(false);
+	    return;
+	}
+
+	Stats stats = privilege.stats;
+
+	stats.userTicks += count * Stats.UserTick;
+	stats.totalTicks += count * Stats.UserTick;
+
+	enabled = false;
+	checkIfDue();
+	enabled = true;
+    }
+
+    private long nextInterruptTime() {
+	return nextDue;
+    }
+
     private void checkIfDue() {
 	long time = privilege.stats.totalTicks;
 
@@ -161,39 +228,102 @@ public final class Interrupt {
 	if (Lib.test(dbgInt))
 	    print();
 
-	if (pending.isEmpty())
-	    return;
-
-	if (((PendingInterrupt) pending.first()).time > time)
+	// the common case: nothing is due yet
+	if (nextDue > time)
 	    return;
 
-	Lib.debug(dbgInt, "Invoking interrupt handlers at time = " + time);
+	if (Lib.test(dbgInt))
+	    System.out.println("Invoking interrupt handlers at time = " + time);
 	
-	while (!pending.isEmpty() &&
-	       ((PendingInterrupt) pending.first()).time <= time) {
-	    PendingInterrupt next = (PendingInterrupt) pending.first();
-	    pending.remove(next);
+	while (nextDue <= time) {
+	    PendingInterrupt next = removeFirst();
+	    String type = next.type;
+	    Runnable handler = next.handler;
 
-	    Lib.assertTrue(next.time <= time);
+	    // the handler may schedule again, and can reuse this record
+	    next.type = null;
+	    next.handler = null;
+	    next.nextFree = freeList;
+	    freeList = next;
 
 	    if (privilege.processor != null)
 		privilege.processor.flushPipe();
 
-	    Lib.debug(dbgInt, "  " + next.type);
+	    if (Lib.test(dbgInt))
+		System.out.println("  " + type);
 			
-	    next.handler.run();
+	    handler.run();
 	}
 
 	Lib.debug(dbgInt, "  (end of list)");
     }
 
+    /**
+     * Add an interrupt to the pending heap.
+     *
+     * @param	toOccur	the interrupt to add.
+     */
+    private void insert(PendingInterrupt toOccur) {
+	if (numPending == pending.length)
+	    pending = Arrays.copyOf(pending, numPending*2);
+
+	// sift up from the new leaf
+	int i = numPending++;
+	while (i > 0) {
+	    int parent = (i-1) / 2;
+	    if (pending[parent].compareTo(toOccur) < 0)
+		break;
+
+	    pending[i] = pending[parent];
+	    i = parent;
+	}
+	pending[i] = toOccur;
+
+	nextDue = pending[0].time;
+    }
+
+    /**
+     * Remove and return the earliest pending interrupt. There must be one.
+     *
+     * @return	the earliest pending interrupt.
+     */
+    private PendingInterrupt removeFirst() {
+	PendingInterrupt first = pending[0];
+	PendingInterrupt last = pending[--numPending];
+	pending[numPending] = null;
+
+	if (numPending > 0) {
+	    // sift the last leaf down from the root
+	    int i = 0;
+	    while (true) {
+		int child = 2*i + 1;
+		if (child >= numPending)
+		    break;
+		if (child+1 < numPending &&
+		    pending[child+1].compareTo(pending[child]) < 0)
+		    child++;
+		if (last.compareTo(pending[child]) < 0)
+		    break;
+
+		pending[i] = pending[child];
+		i = child;
+	    }
+	    pending[i] = last;
+	}
+
+	nextDue = (numPending > 0) ? pending[0].time : Long.MAX_VALUE;
+	return first;
+    }
+
     private void print() {
 	System.out.println("Time: " + privilege.stats.totalTicks
 			   + ", interrupts " + (enabled ? "on" : "off"));
 	System.out.println("Pending interrupts:");
 
-	for (Iterator i=pending.iterator(); i.hasNext(); ) {
-	    PendingInterrupt toOccur = (PendingInterrupt) i.next();
+	PendingInterrupt[] sorted = Arrays.copyOf(pending, numPending);
+	Arrays.sort(sorted);
+
+	for (PendingInterrupt toOccur : sorted) {
 	    System.out.println("  " + toOccur.type +
 			       ", scheduled at " + toOccur.time);
 	}
@@ -201,14 +331,11 @@ public final class Interrupt {
 	System.out.println("  (end of list)");
     }
 
+    /**
+     * A scheduled interrupt. Records are reused once their handler has been
+     * invoked, so scheduling an interrupt does not normally allocate.
+     */
     private class PendingInterrupt implements Comparable {
-	PendingInterrupt(long time, String type, Runnable handler) {
-	    this.time = time;
-	    this.type = type;
-	    this.handler = handler;
-	    this.id = numPendingInterruptsCreated++;
-	}
-
 	public int compareTo(Object o) {
 	    PendingInterrupt toOccur = (PendingInterrupt) o;
 
@@ -230,6 +357,7 @@ public final class Interrupt {
 	Runnable handler;
 
 	private long id;
+	private PendingInterrupt nextFree;
     }
     
     private long numPendingInterruptsCreated = 0;
@@ -237,7 +365,13 @@ public final class Interrupt {
     private Privilege privilege;
 
     private boolean enabled;
-    private TreeSet<PendingInterrupt> pending;
+    /** Pending interrupts, as a binary min-heap ordered by time, then id. */
+    private PendingInterrupt[] pending;
+    private int numPending = 0;
+    /** The time of the earliest pending interrupt, or Long.MAX_VALUE. */
+    private long nextDue = Long.MAX_VALUE;
+    /** Records whose handlers have run, available for reuse. */
+    private PendingInterrupt freeList = null;
 
     private static final char dbgInt = 'i';
 
@@ -249,5 +383,13 @@ public final class Interrupt {
 	public void tick(boolean inKernelMode) {
 	    Interrupt.this.tick(inKernelMode);
 	}
+
+	public void tickUser(int count) {
+	    Interrupt.this.tickUser(count);
+	}
+
+	public long nextInterruptTime() {
+	    return Interrupt.this.nextInterruptTime();
+	}
     }
 }
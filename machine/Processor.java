@@ -39,6 +39,15 @@ public final class Processor {
 
 	usingTLB =
 	    (clsVMKernel != null && clsVMKernel.isAssignableFrom(clsKernel));
+
+	blockExecution = Config.getBoolean("Processor.blockExecution", false);
+
+	boolean variableTLB =
+	    usingTLB && Config.getBoolean("Processor.variableTLB", false);
+	if (variableTLB) {
+	    tlbSize = Config.getInteger("Processor.tlbSize", tlbSize);
+	    Lib.assertTrue(tlbSize > 0);
+	}
 	
 	this.numPhysPages = numPhysPages;
 
@@ -46,11 +55,26 @@ public final class Processor {
 	    registers[i] = 0;
 
 	mainMemory = new byte[pageSize * numPhysPages];
+	decodeCache = new DecodedInstruction[numPhysPages][];
 
 	if (usingTLB) {
 	    translations = new TranslationEntry[tlbSize];
 	    for (int i=0; i<tlbSize; i++)
 		translations[i] = new TranslationEntry();
+
+	    if (variableTLB) {
+		int numBuckets = 1;
+		while (numBuckets < tlbSize*2)
+		    numBuckets *= 2;
+
+		tlbBuckets = new int[numBuckets];
+		tlbChain = new int[tlbSize];
+		tlbBucketOf = new int[tlbSize];
+		for (int i=0; i<numBuckets; i++)
+		    tlbBuckets[i] = -1;
+		for (int i=0; i<tlbSize; i++)
+		    tlbBucketOf[i] = -1;
+	    }
 	}
 	else {
 	    translations = null;
@@ -89,11 +113,23 @@ public final class Processor {
 
 	registers[regNextPC] = registers[regPC] + 4;
 
-	Machine.autoGrader().runProcessor(privilege);
+	// a processor driven without a Machine (e.g. by a benchmark) has no
+	// autograder to notify
+	if (Machine.autoGrader() != null)
+	    Machine.autoGrader().runProcessor(privilege);
 
 	Instruction inst = new Instruction();
+
+	// tracing needs to see every instruction go through the normal path
+	boolean useBlocks = blockExecution && !Lib.test(dbgProcessor) &&
+	    !Lib.test(dbgDisassemble) && !Lib.test(dbgFullDisassemble);
 	
 	while (true) {
+	    if (useBlocks) {
+		runBlock(inst);
+		continue;
+	    }
+
 	    try {
 		inst.run();
 	    }
@@ -105,6 +141,64 @@ public final class Processor {
 	}
     }
 
+    /**
+     * Execute a basic block: a run of consecutive instructions in one
+     * physical page, starting at the current PC. The block ends after an
+     * instruction that does not fall through to the next word (a taken
+     * branch or jump, once its delay slot has run), at the end of the page,
+     * at an exception, or when the next pending interrupt is due.
+     *
+     * <p>
+     * Only the first instruction's address is translated, since nothing can
+     * change the address translation until the kernel runs again. Each
+     * instruction word is still read from memory and looked up in the decode
+     * cache, so stores into the block's own page are seen. Simulated time is
+     * advanced once for the whole block, which gives exactly the same
+     * <tt>Stats.totalTicks</tt> and interrupt timing as ticking after each
+     * instruction, because the block never runs past the next interrupt.
+     *
+     * @param	inst	the instruction state to execute the block with.
+     */
+    private void runBlock(Instruction inst) {
+	long limit = privilege.interrupt.nextInterruptTime() -
+	    privilege.stats.totalTicks;
+	if (limit < 1)
+	    limit = 1;
+
+	int executed = 0;
+
+	try {
+	    int vaddr = registers[regPC];
+	    int paddr = translate(vaddr, 4, false, true);
+	    int pageEnd = (paddr / pageSize + 1) * pageSize;
+
+	    while (true) {
+		int value = Lib.bytesToInt(mainMemory, paddr);
+		inst.run(value, getDecoded(paddr, value));
+		executed++;
+
+		vaddr += 4;
+		paddr += 4;
+
+		if (executed == limit || paddr == pageEnd ||
+		    registers[regPC] != vaddr)
+		    break;
+	    }
+	}
+	catch (MipsException e) {
+	    // the faulting instruction is charged after the handler runs
+	    if (executed > 0)
+		privilege.interrupt.tickUser(executed);
+
+	    e.handle();
+
+	    privilege.interrupt.tick(false);
+	    return;
+	}
+
+	privilege.interrupt.tickUser(executed);
+    }
+
     /**
      * Read and return the contents of the specified CPU register.
      *
@@ -175,6 +269,7 @@ public final class Processor {
 	Lib.assertTrue(!usingTLB);
 
 	this.translations = pageTable;
+	invalidateLastTranslations();
     }
 
     /**
@@ -215,7 +310,80 @@ public final class Processor {
 	Lib.assertTrue(usingTLB);
 	Lib.assertTrue(number >= 0 && number < tlbSize);
 
-	translations[number] = new TranslationEntry(entry);
+	if (tlbBuckets != null)
+	    unlinkTLBEntry(number);
+
+	// copy into the existing entry, so that TLB refills make no garbage
+	TranslationEntry tlbEntry = translations[number];
+	tlbEntry.vpn = entry.vpn;
+	tlbEntry.ppn = entry.ppn;
+	tlbEntry.valid = entry.valid;
+	tlbEntry.readOnly = entry.readOnly;
+	tlbEntry.used = entry.used;
+	tlbEntry.dirty = entry.dirty;
+
+	if (tlbBuckets != null && entry.valid)
+	    linkTLBEntry(number);
+
+	invalidateLastTranslations();
+    }
+
+    /**
+     * Find the TLB entry that maps <i>vpn</i>. If more than one valid entry
+     * maps the same page, the one with the lowest index wins, as it would with
+     * a linear scan.
+     *
+     * @param	vpn	the virtual page number to look up.
+     * @return	the matching TLB entry, or <tt>null</tt> if there is none.
+     */
+    private TranslationEntry lookupTLB(int vpn) {
+	if (tlbBuckets == null) {
+	    for (int i=0; i<tlbSize; i++) {
+		if (translations[i].valid && translations[i].vpn == vpn)
+		    return translations[i];
+	    }
+	    return null;
+	}
+
+	int match = -1;
+	for (int i=tlbBuckets[vpn & (tlbBuckets.length-1)]; i!=-1;
+	     i=tlbChain[i]) {
+	    if (translations[i].vpn == vpn && (match == -1 || i < match))
+		match = i;
+	}
+
+	return (match == -1) ? null : translations[match];
+    }
+
+    private void linkTLBEntry(int number) {
+	int bucket = translations[number].vpn & (tlbBuckets.length-1);
+
+	tlbChain[number] = tlbBuckets[bucket];
+	tlbBuckets[bucket] = number;
+	tlbBucketOf[number] = bucket;
+    }
+
+    private void unlinkTLBEntry(int number) {
+	int bucket = tlbBucketOf[number];
+	if (bucket == -1)
+	    return;
+
+	if (tlbBuckets[bucket] == number) {
+	    tlbBuckets[bucket] = tlbChain[number];
+	}
+	else {
+	    int i = tlbBuckets[bucket];
+	    while (tlbChain[i] != number)
+		i = tlbChain[i];
+	    tlbChain[i] = tlbChain[number];
+	}
+
+	tlbBucketOf[number] = -1;
+    }
+
+    private void invalidateLastTranslations() {
+	lastFetchEntry = null;
+	lastDataEntry = null;
     }
 
     /**
@@ -294,6 +462,25 @@ public final class Processor {
      */
     private int translate(int vaddr, int size, boolean writing)
 	throws MipsException {
+	return translate(vaddr, size, writing, false);
+    }
+
+    /**
+     * Translate a virtual address into a physical address. When using a TLB,
+     * the entries last used for an instruction fetch and for a data reference
+     * are remembered, so that the common case of staying on the same page
+     * does not search the TLB again.
+     *
+     * @param	vaddr	the virtual address to translate.
+     * @param	size	the size of the memory reference (must be 1, 2, or 4).
+     * @param	writing	<tt>true</tt> if the memory reference is a write.
+     * @param	fetching	<tt>true</tt> if the memory reference is an
+     *				instruction fetch.
+     * @return		the physical address.
+     * @exception	MipsException	if a translation error occurred.
+     */
+    private int translate(int vaddr, int size, boolean writing,
+			  boolean fetching) throws MipsException {
 	if (Lib.test(dbgProcessor))
 	    System.out.println("\ttranslate vaddr=0x" + Lib.toHexString(vaddr)
 			       + (writing ? ", write" : ", read..."));
@@ -301,7 +488,7 @@ public final class Processor {
 	// check alignment
 	if ((vaddr & (size-1)) != 0) {
 	    Lib.debug(dbgProcessor, "\t\talignment error");
-	    throw new MipsException(exceptionAddressError, vaddr);
+	    throw fault(exceptionAddressError, vaddr);
 	}
 
 	// calculate virtual page number and offset from the virtual address
@@ -309,6 +496,7 @@ public final class Processor {
 	int offset = offsetFromAddress(vaddr);
 
 	TranslationEntry entry = null;
+	boolean remembered = false;
 
 	// if not using a TLB, then the vpn is an index into the table
 	if (!usingTLB) {
@@ -317,37 +505,45 @@ public final class Processor {
 		!translations[vpn].valid) {
 		privilege.stats.numPageFaults++;
 		Lib.debug(dbgProcessor, "\t\tpage fault");
-		throw new MipsException(exceptionPageFault, vaddr);
+		throw fault(exceptionPageFault, vaddr);
 	    }
 
 	    entry = translations[vpn];
 	}
 	// else, look through all TLB entries for matching vpn
 	else {
-	    for (int i=0; i<tlbSize; i++) {
-		if (translations[i].valid && translations[i].vpn == vpn) {
-		    entry = translations[i];
-		    break;
-		}
-	    }
+	    entry = fetching ? lastFetchEntry : lastDataEntry;
+	    if (entry != null && entry.vpn == vpn)
+		remembered = true;
+	    else
+		entry = lookupTLB(vpn);
+
 	    if (entry == null) {
 		privilege.stats.numTLBMisses++;
 		Lib.debug(dbgProcessor, "\t\tTLB miss");
-		throw new MipsException(exceptionTLBMiss, vaddr);
+		throw fault(exceptionTLBMiss, vaddr);
 	    }
 	}
 
 	// check if trying to write a read-only page
 	if (entry.readOnly && writing) {
 	    Lib.debug(dbgProcessor, "\t\tread-only exception");
-	    throw new MipsException(exceptionReadOnly, vaddr);
+	    throw fault(exceptionReadOnly, vaddr);
 	}
 
 	// check if physical page number is out of range
+	// (a remembered TLB entry already passed this check)
 	int ppn = entry.ppn;
-	if (ppn < 0 || ppn >= numPhysPages) {
+	if (!remembered && (ppn < 0 || ppn >= numPhysPages)) {
 	    Lib.debug(dbgProcessor, "\t\tbad ppn");
-	    throw new MipsException(exceptionBusError, vaddr);
+	    throw fault(exceptionBusError, vaddr);
+	}
+
+	if (usingTLB && !remembered) {
+	    if (fetching)
+		lastFetchEntry = entry;
+	    else
+		lastDataEntry = entry;
 	}
 
 	// set used and dirty bits as appropriate
@@ -378,8 +574,19 @@ public final class Processor {
 
 	Lib.assertTrue(size==1 || size==2 || size==4);
 	
-	int value = Lib.bytesToInt(mainMemory, translate(vaddr, size, false),
-				   size);
+	return readPhysMem(translate(vaddr, size, false), size);
+    }
+
+    /**
+     * Read <i>size</i> (1, 2, or 4) bytes of physical memory at <i>paddr</i>,
+     * and return the result.
+     *
+     * @param	paddr	the physical address to read from.
+     * @param	size	the number of bytes to read (1, 2, or 4).
+     * @return		the value read.
+     */
+    private int readPhysMem(int paddr, int size) {
+	int value = Lib.bytesToInt(mainMemory, paddr, size);
 
 	if (Lib.test(dbgProcessor))
 	    System.out.println("\t\tvalue read=0x" +
@@ -405,9 +612,51 @@ public final class Processor {
 			       + Lib.toHexString(value, size*2));
 
 	Lib.assertTrue(size==1 || size==2 || size==4);
+
+	int paddr = translate(vaddr, size, true);
+
+	// any instructions decoded from this page may now be stale
+	int ppn = paddr / pageSize;
+	if (decodeCache[ppn] != null)
+	    decodeCache[ppn] = null;
 	
-	Lib.bytesFromInt(mainMemory, translate(vaddr, size, true), size,
-			 value);
+	Lib.bytesFromInt(mainMemory, paddr, size, value);
+    }
+
+    /**
+     * Return the decoded form of the instruction word <i>value</i>, fetched
+     * from physical address <i>paddr</i>. Decoded instructions are cached per
+     * physical page, so a loop is only decoded the first time through.
+     *
+     * <p>
+     * The cache is indexed by physical address, so remapping a virtual page
+     * does not make it stale. Stores by user code drop the cached page in
+     * <tt>writeMem()</tt>. The kernel can also write memory directly through
+     * <tt>getMemory()</tt>, so a cached entry is only used if it was decoded
+     * from the same word that is in memory now.
+     *
+     * @param	paddr	the physical address the instruction was fetched from.
+     * @param	value	the instruction word at <i>paddr</i>.
+     * @return	the decoded instruction.
+     */
+    private DecodedInstruction getDecoded(int paddr, int value) {
+	int ppn = paddr / pageSize;
+
+	DecodedInstruction[] page = decodeCache[ppn];
+	if (page == null) {
+	    page = new DecodedInstruction[pageSize/4];
+	    decodeCache[ppn] = page;
+	}
+
+	int index = (paddr % pageSize) / 4;
+
+	DecodedInstruction decoded = page[index];
+	if (decoded == null || decoded.value != value) {
+	    decoded = new DecodedInstruction(value);
+	    page[index] = decoded;
+	}
+
+	return decoded;
     }
 
     /**
@@ -537,6 +786,13 @@ public final class Processor {
     /** The value to be loaded by the delayed load currently in progress. */
     private int loadValue;
 
+    /**
+     * <tt>true</tt> if <tt>run()</tt> should execute whole basic blocks
+     * between interrupt checks. Set by <tt>Processor.blockExecution</tt> in
+     * <tt>nachos.conf</tt>.
+     */
+    private boolean blockExecution;
+
     /** <tt>true</tt> if using a software-managed TLB. */
     private boolean usingTLB;
     /** Number of TLB entries. */
@@ -546,6 +802,20 @@ public final class Processor {
      * depending on whether there is a TLB.
      */
     private TranslationEntry[] translations;
+    /**
+     * Hash index over the valid TLB entries, used instead of a linear scan
+     * when <tt>Processor.variableTLB</tt> is set, so that large TLBs (sized
+     * by <tt>Processor.tlbSize</tt>) stay cheap to search.
+     * <tt>tlbBuckets</tt> holds the first entry in each bucket,
+     * <tt>tlbChain</tt> the next entry in the same bucket, and
+     * <tt>tlbBucketOf</tt> the bucket each entry is linked into (or
+     * <tt>-1</tt>). All three are <tt>null</tt> otherwise.
+     */
+    private int[] tlbBuckets, tlbChain, tlbBucketOf;
+    /** The TLB entry used by the last instruction fetch, or <tt>null</tt>. */
+    private TranslationEntry lastFetchEntry = null;
+    /** The TLB entry used by the last data reference, or <tt>null</tt>. */
+    private TranslationEntry lastDataEntry = null;
 
     /** Size of a page, in bytes. */
     public static final int pageSize = 0x400;
@@ -555,6 +825,15 @@ public final class Processor {
     private int numPhysPages;
     /** Main memory for user programs. */
     private byte[] mainMemory;
+    /**
+     * Instructions decoded from main memory, indexed by physical page number
+     * and then by word within the page. A page's array is <tt>null</tt> until
+     * an instruction is fetched from that page.
+     */
+    private DecodedInstruction[][] decodeCache;
+
+    /** Reusable exceptions, indexed by cause; see <tt>fault()</tt>. */
+    private MipsException[] faults = new MipsException[exceptionNames.length];
 
     /** The kernel exception handler, called on every user exception. */
     private Runnable exceptionHandler = null;
@@ -569,6 +848,46 @@ public final class Processor {
 	}
     }
 
+    /**
+     * Return the preallocated exception for <i>cause</i>, recording
+     * <i>badVAddr</i> as the faulting address.
+     *
+     * <p>
+     * Faults are common when a kernel demand-pages, so the exceptions are
+     * created once and reused rather than allocated on every fault. This is
+     * safe because an exception is finished with once <tt>handle()</tt> has
+     * copied it into the CPU registers, before the kernel handler runs.
+     *
+     * @param	cause	the cause of the exception.
+     * @param	badVAddr	the virtual address that caused the exception.
+     * @return	the exception to throw.
+     */
+    private MipsException fault(int cause, int badVAddr) {
+	MipsException e = fault(cause);
+
+	e.hasBadVAddr = true;
+	e.badVAddr = badVAddr;
+	return e;
+    }
+
+    /**
+     * Return the preallocated exception for <i>cause</i>, with no faulting
+     * address.
+     *
+     * @param	cause	the cause of the exception.
+     * @return	the exception to throw.
+     */
+    private MipsException fault(int cause) {
+	Lib.assertTrue(cause >= 0 && cause < exceptionNames.length);
+
+	MipsException e = faults[cause];
+	if (e == null)
+	    e = faults[cause] = new MipsException(cause);
+
+	e.hasBadVAddr = false;
+	return e;
+    }
+
     private class MipsException extends Exception {
 	public MipsException(int cause) {
 	    Lib.assertTrue(cause >= 0 && cause < exceptionNames.length);
@@ -576,11 +895,14 @@ public final class Processor {
 	    this.cause = cause;
 	}
 
-	public MipsException(int cause, int badVAddr) {
-	    this(cause);
-
-	    hasBadVAddr = true;
-	    this.badVAddr = badVAddr;
+	/**
+	 * Skip filling in the stack trace. A <tt>MipsException</tt> never
+	 * leaves the processor, so the trace would never be looked at.
+	 *
+	 * @return	this exception.
+	 */
+	public Throwable fillInStackTrace() {
+	    return this;
 	}
 
 	public void handle() {
@@ -597,7 +919,8 @@ public final class Processor {
 	    Lib.assertTrue(exceptionHandler != null);
 
 	    // autograder might not want kernel to know about this exception
-	    if (!Machine.autoGrader().exceptionHandler(privilege))
+	    if (Machine.autoGrader() != null &&
+		!Machine.autoGrader().exceptionHandler(privilege))
 		return;
 	    
 	    exceptionHandler.run();
@@ -616,6 +939,22 @@ public final class Processor {
 	    writeBack();
 	}	
 
+	/**
+	 * Execute an instruction that has already been fetched and decoded.
+	 *
+	 * @param	value	the instruction word.
+	 * @param	decoded	the decoded form of <i>value</i>.
+	 */
+	public void run(int value, DecodedInstruction decoded)
+	    throws MipsException {
+	    this.value = value;
+	    this.decoded = decoded;
+
+	    decode();
+	    execute();
+	    writeBack();
+	}
+
 	private boolean test(int flag) {
 	    return Lib.test(flag, flags);
 	}
@@ -626,78 +965,50 @@ public final class Processor {
 		System.out.print("PC=0x" + Lib.toHexString(registers[regPC])
 				 + "\t");
 
-	    value = readMem(registers[regPC], 4);
+	    int vaddr = registers[regPC];
+
+	    if (Lib.test(dbgProcessor))
+		System.out.println("\treadMem vaddr=0x" + Lib.toHexString(vaddr)
+				   + ", size=4");
+
+	    int paddr = translate(vaddr, 4, false, true);
+	    value = readPhysMem(paddr, 4);
+	    decoded = getDecoded(paddr, value);
 	}
 	
 	private void decode() {
-	    op = Lib.extract(value, 26, 6);
-	    rs = Lib.extract(value, 21, 5);
-	    rt = Lib.extract(value, 16, 5);
-	    rd = Lib.extract(value, 11, 5);
-	    sh = Lib.extract(value, 6, 5);
-	    func = Lib.extract(value, 0, 6);
-	    target = Lib.extract(value, 0, 26);
-	    imm = Lib.extend(value, 0, 16);
-
-	    Mips info;
-	    switch (op) {
-	    case 0:
-		info = Mips.specialtable[func];
-		break;
-	    case 1:
-		info = Mips.regimmtable[rt];
-		break;
-	    default:
-		info = Mips.optable[op];
-		break;
-	    }
-
-	    operation = info.operation;
-	    name = info.name;
-	    format = info.format;
-	    flags = info.flags;
+	    op = decoded.op;
+	    rs = decoded.rs;
+	    rt = decoded.rt;
+	    rd = decoded.rd;
+	    sh = decoded.sh;
+	    func = decoded.func;
+	    target = decoded.target;
+	    imm = decoded.imm;
+
+	    operation = decoded.operation;
+	    name = decoded.name;
+	    format = decoded.format;
+	    flags = decoded.flags;
+	    size = decoded.size;
+	    dstReg = decoded.dstReg;
 
 	    mask = 0xFFFFFFFF;	
 	    branch = true;
-	
-	    // get memory access size
-	    if (test(Mips.SIZEB))
-		size = 1;
-	    else if (test(Mips.SIZEH))
-		size = 2;
-	    else if (test(Mips.SIZEW))
-		size = 4;
-	    else
-		size = 0;
 
 	    // get nextPC
 	    nextPC = registers[regNextPC]+4;
 
-	    // get dstReg
-	    if (test(Mips.DSTRA))
-		dstReg = regRA;
-	    else if (format == Mips.IFMT)
-		dstReg = rt;
-	    else if (format == Mips.RFMT)
-		dstReg = rd;
-	    else
-		dstReg = -1;
-
 	    // get jtarget
 	    if (format == Mips.RFMT)
 		jtarget = registers[rs];
 	    else if (format == Mips.IFMT)
-		jtarget = registers[regNextPC] + (imm<<2);
+		jtarget = registers[regNextPC] + decoded.branchOffset;
 	    else if (format == Mips.JFMT)
 		jtarget = (registers[regNextPC]&0xF0000000) | (target<<2);
 	    else
 		jtarget = -1;
 
-	    // get imm
-	    if (test(Mips.UNSIGNED)) {
-		imm &= 0xFFFF;
-	    }
-
 	    // get addr
 	    addr = registers[rs] + imm;
 
@@ -869,7 +1180,7 @@ public final class Processor {
 			throw new ArithmeticException();
 		}
 		catch (ArithmeticException e) {
-		    throw new MipsException(exceptionOverflow);
+		    throw fault(exceptionOverflow);
 		}
 		break;
 
@@ -939,7 +1250,7 @@ public final class Processor {
 		break;
 
 	    case Mips.SYSCALL:
-		throw new MipsException(exceptionSyscall);
+		throw fault(exceptionSyscall);
 
 	    case Mips.LOAD:
 		value = readMem(addr, size);
@@ -1009,7 +1320,7 @@ public final class Processor {
 		System.err.println("Warning: encountered unimplemented inst");
 		
 	    case Mips.INVALID:
-		throw new MipsException(exceptionIllegalInstruction);
+		throw fault(exceptionIllegalInstruction);
 
 	    default:
 		Lib.assertNotReached();
@@ -1019,7 +1330,7 @@ public final class Processor {
 	private void writeBack() throws MipsException {
 	    // if instruction is signed, but carry bit !+ sign bit, throw
 	    if (test(Mips.OVERFLOW) && Lib.test(dst,31) != Lib.test(dst,32))
-		throw new MipsException(exceptionOverflow);
+		throw fault(exceptionOverflow);
 
 	    if (test(Mips.DELAYEDLOAD))
 		delayedLoad(dstReg, (int) dst, mask);
@@ -1052,6 +1363,7 @@ public final class Processor {
 	}
     
 	// state used to execute a single instruction
+	DecodedInstruction decoded;
 	int value, op, rs, rt, rd, sh, func, target, imm;
 	int operation, format, flags;
 	String name;
@@ -1063,6 +1375,82 @@ public final class Processor {
 	boolean branch;
     }
 
+    /**
+     * The parts of an instruction that depend only on the instruction word,
+     * and not on the contents of any registers. Computed once per word by
+     * <tt>getDecoded()</tt>.
+     */
+    private static class DecodedInstruction {
+	DecodedInstruction(int value) {
+	    this.value = value;
+
+	    op = Lib.extract(value, 26, 6);
+	    rs = Lib.extract(value, 21, 5);
+	    rt = Lib.extract(value, 16, 5);
+	    rd = Lib.extract(value, 11, 5);
+	    sh = Lib.extract(value, 6, 5);
+	    func = Lib.extract(value, 0, 6);
+	    target = Lib.extract(value, 0, 26);
+
+	    Mips info;
+	    switch (op) {
+	    case 0:
+		info = Mips.specialtable[func];
+		break;
+	    case 1:
+		info = Mips.regimmtable[rt];
+		break;
+	    default:
+		info = Mips.optable[op];
+		break;
+	    }
+
+	    operation = info.operation;
+	    name = info.name;
+	    format = info.format;
+	    flags = info.flags;
+
+	    // get memory access size
+	    if (Lib.test(Mips.SIZEB, flags))
+		size = 1;
+	    else if (Lib.test(Mips.SIZEH, flags))
+		size = 2;
+	    else if (Lib.test(Mips.SIZEW, flags))
+		size = 4;
+	    else
+		size = 0;
+
+	    // get dstReg
+	    if (Lib.test(Mips.DSTRA, flags))
+		dstReg = regRA;
+	    else if (format == Mips.IFMT)
+		dstReg = rt;
+	    else if (format == Mips.RFMT)
+		dstReg = rd;
+	    else
+		dstReg = -1;
+
+	    // branch offsets always use the sign-extended immediate
+	    int extended = Lib.extend(value, 0, 16);
+	    branchOffset = extended<<2;
+
+	    // get imm
+	    if (Lib.test(Mips.UNSIGNED, flags))
+		imm = extended & 0xFFFF;
+	    else
+		imm = extended;
+	}
+
+	/** The instruction word this was decoded from. */
+	final int value;
+
+	final int op, rs, rt, rd, sh, func, target, imm;
+	final int operation, format, flags;
+	final String name;
+
+	final int size, dstReg, branchOffset;
+    }
+
     private static class Mips {
 	Mips() {
 	}
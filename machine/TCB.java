@@ -6,6 +6,7 @@ import nachos.security.*;
 import nachos.threads.KThread;
 
 import java.util.Vector;
+import java.lang.reflect.Method;
 import java.security.PrivilegedAction;
 
 /**
@@ -14,6 +15,20 @@ import java.security.PrivilegedAction;
  * object.
  *
  * <p>
+ * If <tt>TCB.virtualThreads</tt> is set in <tt>nachos.conf</tt> and the JVM
+ * supports virtual threads (Java 21 or later), every TCB but the first runs
+ * on a virtual thread, and context switches hand off with
+ * <tt>LockSupport.park()</tt>/<tt>unpark()</tt> rather than a monitor.
+ * This makes context switches cheaper and allows many more threads; raise
+ * <tt>TCB.maxThreads</tt> to use them. Without virtual threads, TCBs run on
+ * platform threads with a stack of <tt>TCB.stackSize</tt> bytes (or the JVM
+ * default).
+ *
+ * <p>
+ * <tt>TCB.handoff</tt> selects how platform threads hand off: <tt>monitor</tt>
+ * (the default) or <tt>park</tt>. See <tt>Handoff</tt>.
+ *
+ * <p>
  * Do not use any methods in <tt>java.lang.Thread</tt>, as they are not
  * compatible with the TCB API. Most <tt>Thread</tt> methods will either crash
  * Nachos or have no useful effect.
@@ -40,6 +55,58 @@ public final class TCB {
     public static void givePrivilege(Privilege privilege) {
 	TCB.privilege = privilege;
 	privilege.tcb = new TCBPrivilege();
+
+	threadLimit = Config.getInteger("TCB.maxThreads", maxThreads);
+	Lib.assertTrue(threadLimit > 0);
+	stackSize = Config.getInteger("TCB.stackSize", 0);
+
+	if (Config.getBoolean("TCB.virtualThreads", false)) {
+	    /* Only one TCB runs at a time, so one carrier thread is enough.
+	     * The scheduler creates carrier threads without Nachos privilege,
+	     * so it has to be started now, before the security manager is
+	     * installed, and its carrier must then never go idle long enough
+	     * to be retired (30 seconds); otherwise the next context switch
+	     * would have to create one. A virtual thread that wakes up every
+	     * few seconds keeps it busy enough.
+	     */
+	    System.setProperty("jdk.virtualThreadScheduler.parallelism", "1");
+
+	    try {
+		virtualThreadBuilder =
+		    Thread.class.getMethod("ofVirtual").invoke(null);
+		newVirtualThread =
+		    Class.forName("java.lang.Thread$Builder")
+		    .getMethod("unstarted", Runnable.class);
+
+		Thread keepAlive = newJavaThread(new Runnable() {
+			public void run() {
+			    while (true) {
+				try { Thread.sleep(carrierKeepAlive); }
+				catch (InterruptedException e) { }
+			    }
+			}
+		    });
+		keepAlive.start();
+	    }
+	    catch (Exception e) {
+		Lib.debug(dbgTCB, "virtual threads unavailable, using platform "
+			  + "threads");
+		virtualThreadBuilder = null;
+	    }
+	}
+
+	String handoff = Config.getString("TCB.handoff", "monitor");
+	Lib.assertTrue(handoff.equals("monitor") || handoff.equals("park"));
+
+	// monitors pin a virtual thread to its carrier, so never use them
+	parkHandoff = (virtualThreadBuilder != null || handoff.equals("park"));
+
+	/* Spinning only helps if the thread we handed off to can run on
+	 * another processor meanwhile; virtual threads share one carrier.
+	 */
+	if (virtualThreadBuilder == null)
+	    spinCount = Config.getInteger("TCB.spinCount", 0);
+	Lib.assertTrue(spinCount >= 0);
     }
     
     /**
@@ -66,7 +133,7 @@ public final class TCB {
 	/* Make sure there aren't too many running TCBs already. This
 	 * limitation exists in an effort to prevent wild thread usage.
 	 */
-	Lib.assertTrue(runningThreads.size() < maxThreads);
+	Lib.assertTrue(runningThreads.size() < threadLimit);
 
 	isFirstTCB = (currentTCB == null);
 
@@ -94,7 +161,7 @@ public final class TCB {
 		};
 
 	    privilege.doPrivileged(new Runnable() {
-		    public void run() { javaThread = new Thread(tcbTarget); }
+		    public void run() { javaThread = newJavaThread(tcbTarget); }
 		});
 
 	    /* The Java thread hasn't yet started, but we need to get it
@@ -103,7 +170,7 @@ public final class TCB {
 	     * to wake us up from threadroot(). Once the new TCB wakes us up,
 	     * it's safe to context switch to the new TCB.
 	     */
-	    currentTCB.running = false;
+	    currentTCB.running.clear();
 	    
 	    this.javaThread.start();
 	    currentTCB.waitForInterrupt();
@@ -156,7 +223,7 @@ public final class TCB {
 	 */
 
 	TCB previous = currentTCB;
-	previous.running = false;
+	previous.running.clear();
 	
 	this.interrupt();
 	previous.yield();
@@ -181,7 +248,7 @@ public final class TCB {
 	toBeDestroyed = null;
 
 	this.done = true;
-	currentTCB.running = false;
+	currentTCB.running.clear();
 
 	this.interrupt();
 	currentTCB.waitForInterrupt();
@@ -207,6 +274,28 @@ public final class TCB {
 		Thread.currentThread() == currentTCB.javaThread);
     }
 
+    /**
+     * Create (but do not start) a Java thread to run a TCB, on a virtual
+     * thread if they are enabled. Must be called with privilege.
+     */
+    private static Thread newJavaThread(Runnable target) {
+	if (virtualThreadBuilder != null) {
+	    try {
+		return (Thread) newVirtualThread.invoke(virtualThreadBuilder,
+							target);
+	    }
+	    catch (Exception e) {
+		Lib.assertNotReached("cannot create virtual thread: " + e);
+	    }
+	}
+
+	if (stackSize > 0)
+	    return new Thread(null, target, "TCB-" + numThreadsCreated++,
+			      stackSize);
+	else
+	    return new Thread(target);
+    }
+
     private void threadroot() {
 	// this should be running the current thread
 	Lib.assertTrue(javaThread == Thread.currentThread());
@@ -228,7 +317,7 @@ public final class TCB {
 	     */
 	    
 	    currentTCB = this;
-	    running = true;
+	    running.signal(javaThread);
 	}
 
 	try {
@@ -280,29 +369,24 @@ public final class TCB {
     }
 
     /**
-     * Waits on the monitor bound to this TCB until its <tt>running</tt> flag
-     * is set to <tt>true</tt>. <tt>waitForInterrupt()</tt> is used whenever a
-     * TCB needs to go to wait for its turn to run. This includes the ping-pong
-     * process of starting and destroying TCBs, as well as in context switching
-     * from this TCB to another. We don't rely on <tt>currentTCB</tt>, since it
-     * is updated by <tt>contextSwitch()</tt> before we get called.
+     * Waits until this TCB's <tt>running</tt> flag is set to <tt>true</tt>.
+     * <tt>waitForInterrupt()</tt> is used whenever a TCB needs to go to wait
+     * for its turn to run. This includes the ping-pong process of starting and
+     * destroying TCBs, as well as in context switching from this TCB to
+     * another. We don't rely on <tt>currentTCB</tt>, since it is updated by
+     * <tt>contextSwitch()</tt> before we get called.
      */
-    private synchronized void waitForInterrupt() {
-	while (!running) {
-	    try { wait(); }
-	    catch (InterruptedException e) { }
-	}
+    private void waitForInterrupt() {
+	running.await();
     }
 
     /**
      * Wake up this TCB by setting its <tt>running</tt> flag to <tt>true</tt>
-     * and signalling the monitor bound to it. Used in the ping-pong process of
-     * starting and destroying TCBs, as well as in context switching to this
-     * TCB.
+     * and waking its Java thread. Used in the ping-pong process of starting
+     * and destroying TCBs, as well as in context switching to this TCB.
      */
-    private synchronized void interrupt() {
-	running = true;
-	notify();
+    private void interrupt() {
+	running.signal(javaThread);
     }
 
     private void associateThread(KThread thread) {
@@ -327,11 +411,39 @@ public final class TCB {
     }
 
     /**
-     * The maximum number of started, non-destroyed TCB's that can be in
-     * existence.
+     * The default maximum number of started, non-destroyed TCB's that can be
+     * in existence. <tt>TCB.maxThreads</tt> in <tt>nachos.conf</tt> overrides
+     * it.
      */
     public static final int maxThreads = 250;
 
+    /** The maximum number of started, non-destroyed TCB's. */
+    private static int threadLimit = maxThreads;
+    /** Stack size for platform threads, or 0 for the JVM default. */
+    private static long stackSize = 0;
+    private static int numThreadsCreated = 0;
+
+    /**
+     * The <tt>Thread.Builder</tt> used to create virtual threads, or
+     * <tt>null</tt> if TCBs run on platform threads. Virtual threads are
+     * reached through reflection so that Nachos still builds on older JDKs.
+     */
+    private static Object virtualThreadBuilder = null;
+    /** <tt>Thread.Builder.unstarted(Runnable)</tt>. */
+    private static Method newVirtualThread = null;
+    /**
+     * <tt>true</tt> if TCBs hand off with <tt>LockSupport</tt> instead of
+     * the monitor bound to each TCB's <tt>Handoff</tt>.
+     */
+    private static boolean parkHandoff = false;
+    /** How many times a parking handoff checks its flag before parking. */
+    private static int spinCount = 0;
+
+    /** How often, in milliseconds, the carrier thread is kept busy. */
+    private static final long carrierKeepAlive = 5000;
+
+    private static final char dbgTCB = 't';
+
     /**
      * A reference to the currently running TCB. It is initialized to
      * <tt>null</tt> when the <tt>TCB</tt> class is loaded, and then the first
@@ -388,7 +500,7 @@ public final class TCB {
      * destroying a TCB, this is temporarily true for a thread other than that
      * of the current TCB.
      */
-    private boolean running = false;
+    private Handoff running = new Handoff(parkHandoff, spinCount);
 
     /**
      * Set to <tt>true</tt> by <tt>destroy()</tt>, so that when
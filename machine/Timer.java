@@ -13,6 +13,11 @@ import nachos.security.*;
  * interrupt to occur every time approximately 500 clock ticks pass. There is
  * a small degree of randomness here, so interrupts do not occur exactly every
  * 500 ticks.
+ *
+ * <p>
+ * The timer also has a one-shot alarm, which calls a separate handler as
+ * soon as the time it is set to arrives, for waking up sleeping threads
+ * without waiting for the next periodic interrupt.
  */
 public final class Timer {
     /**
@@ -30,6 +35,10 @@ public final class Timer {
 		public void run() { timerInterrupt(); }
 	    };
 	
+	alarmInterrupt = new Runnable() {
+		public void run() { alarmInterrupt(); }
+	    };
+
 	autoGraderInterrupt = new Runnable() {
 		public void run() {
 		    Machine.autoGrader().timerInterrupt(Timer.this.privilege,
@@ -50,6 +59,44 @@ public final class Timer {
 	this.handler = handler;
     }
 
+    /**
+     * Set the callback to use as the alarm handler, which is called once
+     * each time the alarm set by <tt>setAlarm()</tt> goes off.
+     *
+     * @param	handler		the alarm handler.
+     */
+    public void setAlarmHandler(Runnable handler) {
+	this.alarmHandler = handler;
+    }
+
+    /**
+     * Set the alarm to go off when the time reaches <tt>time</tt>, replacing
+     * any earlier setting. If <tt>time</tt> has already passed, the alarm
+     * goes off on the next clock tick.
+     *
+     * @param	time	when the alarm should go off.
+     */
+    public void setAlarm(long time) {
+	alarmTime = time;
+
+	/* Pending interrupts can't be taken back, so an interrupt left over
+	 * from an earlier setting just finds the alarm not due, and does
+	 * nothing.
+	 */
+	long when = Math.max(time - getTime(), 1);
+	if (getTime() + when != alarmScheduled) {
+	    alarmScheduled = getTime() + when;
+	    privilege.interrupt.schedule(when, "alarm", alarmInterrupt);
+	}
+    }
+
+    /**
+     * Turn off the alarm, if it is set.
+     */
+    public void cancelAlarm() {
+	alarmTime = Long.MAX_VALUE;
+    }
+
     /**
      * Get the current time.
      *
@@ -69,6 +116,19 @@ public final class Timer {
 	    handler.run();
     }
 
+    private void alarmInterrupt() {
+	if (alarmScheduled <= getTime())
+	    alarmScheduled = -1;
+
+	if (getTime() < alarmTime)
+	    return;
+
+	alarmTime = Long.MAX_VALUE;
+
+	if (alarmHandler != null)
+	    alarmHandler.run();
+    }
+
     private void scheduleInterrupt() {
 	int delay = Stats.TimerTicks;
 	delay += Lib.random(delay/10) - (delay/20);
@@ -83,7 +143,14 @@ public final class Timer {
     private long lastTimerInterrupt;
     private Runnable timerInterrupt;
     private Runnable autoGraderInterrupt;
+    private Runnable alarmInterrupt;
+
+    /** When the alarm goes off, or <tt>Long.MAX_VALUE</tt> if it is off. */
+    private long alarmTime = Long.MAX_VALUE;
+    /** The time of the last alarm interrupt scheduled, if still pending. */
+    private long alarmScheduled = -1;
 
     private Privilege privilege;
     private Runnable handler = null;
+    private Runnable alarmHandler = null;
 }
@@ -58,7 +58,12 @@ public class PostOffice {
 
 	Lib.debug(dbgNet, "waiting for mail on port " + port);
 
+	// no mail can arrive between the check and the wait
+	boolean intStatus = Machine.interrupt().disable();
+	if (queues[port].isEmpty())
+	    ThreadedKernel.scheduler.waitingForInput(KThread.currentThread());
 	MailMessage mail = (MailMessage) queues[port].removeFirst();
+	Machine.interrupt().restore(intStatus);
 
 	if (Lib.test(dbgNet))
 	    System.out.println("got mail on port " + port + ": " + mail);
@@ -158,6 +158,24 @@ public abstract class Privilege {
 	 *		MIPS user code.
 	 */
 	public void tick(boolean inKernelMode);
+
+	/**
+	 * Advance the simulated time by several user ticks at once. This has
+	 * the same effect as calling <tt>tick(false)</tt> <i>count</i> times,
+	 * provided that no interrupt is due before the last of those ticks.
+	 *
+	 * @param	count	the number of user instructions executed.
+	 */
+	public void tickUser(int count);
+
+	/**
+	 * Return the simulated time at which the next pending interrupt is
+	 * due.
+	 *
+	 * @return	the time of the next pending interrupt, or
+	 *		<tt>Long.MAX_VALUE</tt> if no interrupts are pending.
+	 */
+	public long nextInterruptTime();
     }
 
     /**
@@ -55,7 +55,7 @@ name:				; \
 	.end	name
 
 	SYSCALLSTUB(halt, syscallHalt)
-	SYSCALLSTUB(exit, syscallExit)
+	SYSCALLSTUB(_exit, syscallExit)
 	SYSCALLSTUB(exec, syscallExec)
 	SYSCALLSTUB(join, syscallJoin)
 	SYSCALLSTUB(creat, syscallCreate)
@@ -67,3 +67,5 @@ name:				; \
 	SYSCALLSTUB(mmap, syscallMmap)
 	SYSCALLSTUB(connect, syscallConnect)
 	SYSCALLSTUB(accept, syscallAccept)
+	SYSCALLSTUB(readv, syscallReadv)
+	SYSCALLSTUB(writev, syscallWritev)
@@ -1,18 +1,115 @@
 #include "stdio.h"
 #include "stdlib.h"
 
+/* The output buffer of each stream. Standard output starts out line
+ * buffered; every other stream is unbuffered until setvbuf() is called, so
+ * that programs mixing write() and fputs() on a file see no reordering.
+ */
+#define MAXSTREAMS	16
+
+static struct {
+    int mode;
+    int length;
+    char buf[BUFSIZ];
+} streams[MAXSTREAMS] = { { _IONBF }, { _IOLBF } };
+
+/* Write the buffered output of stream and len bytes of s, with one syscall. */
+static int flushwith(FILE stream, const char *s, int len) {
+    struct iovec iov[2];
+    int pending = streams[stream].length;
+    int amount;
+
+    streams[stream].length = 0;
+
+    if (pending == 0)
+	amount = (len == 0) ? 0 : write(stream, (char*) s, len);
+    else if (len == 0)
+	amount = write(stream, streams[stream].buf, pending);
+    else {
+	iov[0].iov_base = streams[stream].buf;
+	iov[0].iov_len = pending;
+	iov[1].iov_base = (char*) s;
+	iov[1].iov_len = len;
+	amount = writev(stream, iov, 2);
+    }
+
+    return (amount == pending+len) ? 0 : EOF;
+}
+
+static void fputbuf(const char *s, int len, FILE stream) {
+    int i;
+
+    if (stream < 0 || stream >= MAXSTREAMS || streams[stream].mode == _IONBF) {
+	write(stream, (char*) s, len);
+	return;
+    }
+
+    /* too big to buffer: send it along with what's already buffered */
+    if (streams[stream].length + len > BUFSIZ) {
+	flushwith(stream, s, len);
+	return;
+    }
+
+    memcpy(streams[stream].buf + streams[stream].length, (char*) s, len);
+    streams[stream].length += len;
+
+    if (streams[stream].length == BUFSIZ)
+	fflush(stream);
+    else if (streams[stream].mode == _IOLBF) {
+	for (i=0; i<len; i++) {
+	    if (s[i] == '\n') {
+		fflush(stream);
+		break;
+	    }
+	}
+    }
+}
+
+int fflush(FILE stream) {
+    if (stream < 0 || stream >= MAXSTREAMS)
+	return EOF;
+
+    return flushwith(stream, 0, 0);
+}
+
+void setvbuf(FILE stream, int mode) {
+    if (stream < 0 || stream >= MAXSTREAMS)
+	return;
+
+    fflush(stream);
+    streams[stream].mode = mode;
+}
+
+void exit(int status) {
+    int i;
+
+    for (i=0; i<MAXSTREAMS; i++)
+	fflush(i);
+
+    _exit(status);
+}
+
 int fgetc(int fd) {
     unsigned char c;
 
+    /* make sure any prompt is visible before waiting for input */
+    if (fd == stdin)
+	fflush(stdout);
+
     while (read(fd, &c, 1) != 1);
 
     return c;
 }
 
 void fputc(char c, int fd) {
-    write(fd, &c, 1);
+    fputbuf(&c, 1, fd);
 }
 
 void fputs(const char *s, int fd) {
-    write(fd, (char*) s, strlen(s));
+    fputbuf(s, strlen(s), fd);
+}
+
+int fwrite(const void *buf, int size, int count, FILE stream) {
+    fputbuf((const char*) buf, size*count, stream);
+    return count;
 }
@@ -14,6 +14,22 @@ typedef int		FILE;
 #define stdin		fdStandardInput
 #define stdout		fdStandardOutput
 
+#define EOF		(-1)
+
+/* Output buffering modes for setvbuf(). stdout starts out line buffered,
+ * and every other stream starts out unbuffered. A buffered stream is written
+ * when its buffer fills, when fflush() is called, or at exit(); a line
+ * buffered one also whenever a newline is written to it. Reading stdin
+ * flushes stdout.
+ */
+#define _IONBF		0
+#define _IOLBF		1
+#define _IOFBF		2
+#define BUFSIZ		256
+
+int  fflush(FILE stream);
+void setvbuf(FILE stream, int mode);
+
 int  fgetc(FILE stream);
 void readline(char *s, int maxlength);
 int  tryreadline(char *s, char c, int maxlength);
@@ -24,6 +40,7 @@ int  tryreadline(char *s, char c, int maxlength);
 
 void fputc(char c, FILE stream);
 void fputs(const char *s, FILE stream);
+int  fwrite(const void *buf, int size, int count, FILE stream);
 
 #define puts(s)		fputs(s,stdout)
 #define putc(c,stream)	fputc(c,stream)
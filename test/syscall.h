@@ -25,6 +25,8 @@
 #define syscallMmap		10
 #define syscallConnect		11
 #define syscallAccept		12
+#define syscallReadv		13
+#define syscallWritev		14
 
 /* Don't want the assembler to see C code, but start.s includes syscall.h. */
 #ifndef START_S
@@ -65,8 +67,12 @@ void halt();
  * (but is not required to) set status to 0.
  *
  * exit() never returns.
+ *
+ * The C library's exit() flushes buffered stdio output first, and then calls
+ * _exit(), which is the system call itself.
  */
 void exit(int status);
+void _exit(int status);
 
 /**
  * Execute the program stored in the specified file, with the specified
@@ -181,6 +187,45 @@ int read(int fileDescriptor, void *buffer, int count);
  */
 int write(int fileDescriptor, void *buffer, int count);
 
+/**
+ * A buffer for readv() and writev(): iov_len bytes starting at iov_base.
+ */
+struct iovec {
+    void *iov_base;
+    int iov_len;
+};
+
+/**
+ * Read into each of the iovcnt buffers described by iov in turn, as if by
+ * calling read() on each, but in a single system call. At most 128 buffers
+ * can be passed at once.
+ *
+ * On success, the total number of bytes read is returned. As with read(),
+ * fewer bytes than requested may be read; readv() stops filling buffers at
+ * the first one it cannot fill completely.
+ *
+ * On error, -1 is returned. This can happen for the same reasons as read(),
+ * or if iov itself is invalid or iovcnt is out of range. If some buffers have
+ * already been filled, the number of bytes read so far is returned instead.
+ */
+int readv(int fileDescriptor, struct iovec *iov, int iovcnt);
+
+/**
+ * Write each of the iovcnt buffers described by iov in turn, as if by calling
+ * write() on each, but in a single system call. At most 128 buffers can be
+ * passed at once.
+ *
+ * On success, the total number of bytes written is returned. As with
+ * write(), it is an error if this is smaller than the total size of the
+ * buffers.
+ *
+ * On error, -1 is returned. This can happen for the same reasons as write(),
+ * or if iov itself is invalid or iovcnt is out of range. If some buffers have
+ * already been written, the number of bytes written so far is returned
+ * instead.
+ */
+int writev(int fileDescriptor, struct iovec *iov, int iovcnt);
+
 /**
  * Close a file descriptor, so that it no longer refers to any file or stream
  * and may be reused.
@@ -217,6 +262,11 @@ int unlink(char *name);
 /**
  * Map the file referenced by fileDescriptor into memory at address. The file
  * may be as large as 0x7FFFFFFF bytes.
+ *
+ * address must be page-aligned, and the map must not overlap the program, its
+ * stack, or another map, or end past the largest address space the kernel
+ * allows. Pages of the map are read from the file when they are
+ * first used.
  * 
  * To maintain consistency, further calls to read() and write() on this file
  * descriptor will fail (returning -1) until the file descriptor is closed.
@@ -1,9 +1,8 @@
 package nachos.threads;
 
 import nachos.machine.*;
-import java.util.Comparator;
+import java.util.HashMap;
 import java.util.PriorityQueue;
-import java.util.Queue;
 
 /**
  * Uses the hardware timer to provide preemption, and to allow threads to sleep
@@ -20,7 +19,10 @@ public class Alarm {
     public Alarm() {
 	Machine.timer().setInterruptHandler(new Runnable() {
 		public void run() { timerInterrupt(); }
-	    });                                                                                                                                                                
+	    });
+	Machine.timer().setAlarmHandler(new Runnable() {
+		public void run() { wakeSleepers(); }
+	    });
     }
 
     /**
@@ -29,18 +31,47 @@ public class Alarm {
      * thread to yield, forcing a context switch if there is another thread
      * that should be run.
      */
-
-    /** get the one with smallest waketime and check if it's time to wake up it */
     public void timerInterrupt() {
+	wakeSleepers();
+
+	ThreadedKernel.scheduler.quantumExpired(KThread.currentThread());
+	KThread.currentThread().yield();
+    }
+
+    /**
+     * Wake up every thread whose time has come, and set the timer's alarm
+     * for the next one. Called from the timer interrupt, and from the alarm
+     * itself, which goes off as soon as the earliest wake time comes. Woken
+     * threads are only made ready; the alarm does not preempt the current
+     * thread.
+     */
+    private void wakeSleepers() {
+	long time = Machine.timer().getTime();
 
-	Union union;
+	while (!sleepers.isEmpty() && sleepers.peek().wakeTime <= time) {
+	    Sleeper sleeper = sleepers.poll();
 
-	if ((union = priorityQueue.poll()) != null){
-	    if (union.getWakeTime() <= Machine.timer().getTime()) union.getThread().ready();
-	    else priorityQueue.add(union);
+	    if (!sleeper.cancelled) {
+		sleeping.remove(sleeper.thread);
+		sleeper.thread.ready();
+	    }
 	}
 
-	KThread.currentThread().yield();
+	setAlarm();
+    }
+
+    /**
+     * Set the timer's alarm for the earliest sleeper, dropping cancelled
+     * ones from the top of the heap on the way.
+     */
+    private void setAlarm() {
+	while (!sleepers.isEmpty() && sleepers.peek().cancelled)
+	    sleepers.poll();
+
+	if (sleepers.isEmpty())
+	    Machine.timer().cancelAlarm();
+	else
+	    Machine.timer().setAlarm(sleepers.peek().wakeTime);
     }
 
     /**
@@ -53,61 +84,92 @@ public class Alarm {
      * (current time) >= (WaitUntil called time)+(x)
      * </blockquote>
      *
+     * <p>
+     * In fact, the timer's alarm is set for the earliest wake time, so the
+     * thread is woken up as soon as its time comes. It can also be woken up
+     * early by <tt>cancel()</tt>, which makes <tt>waitUntil()</tt> usable as
+     * a timeout.
+     *
      * @param	x	the minimum number of clock ticks to wait.
      *
      * @see	nachos.machine.Timer#getTime()
      */
+    public void waitUntil(long x) {
+	if (x <= 0)
+	    return;
 
-    /** add a priority queue to deal with the sorting */
+	boolean intStatus = Machine.interrupt().disable();
 
-	class Union{
-	    KThread thread;
-	    long wakeTime;
-	    public Union(KThread thread, long wakeTime){
-		this.thread = thread;
-		this.wakeTime = wakeTime;
-	    }
-	    public long getWakeTime(){
-		return this.wakeTime;
-	    }
-	    public KThread getThread(){
-		return this.thread;
-	    }
-	}
+	KThread thread = KThread.currentThread();
+	Sleeper sleeper = new Sleeper(thread, Machine.timer().getTime() + x);
 
-	Comparator<Union> OrderIsdn =  new Comparator<Union>(){
-	    public int compare(Union u1, Union u2){
-		long wakeTime1 = u1.getWakeTime();
-		long wakeTime2 = u2.getWakeTime();
-		if (wakeTime1 > wakeTime2) {return 1;}
-		else if (wakeTime1 < wakeTime2) {return -1;}
-		else {return 0;}
-	    }
-	};
+	sleepers.add(sleeper);
+	sleeping.put(thread, sleeper);
+	if (sleepers.peek() == sleeper)
+	    Machine.timer().setAlarm(sleeper.wakeTime);
 
-	Queue<Union> priorityQueue = new PriorityQueue<Union>(11, OrderIsdn);
+	KThread.sleep();
 
-	
-    /** enter the wait queue and go to sleep */
+	Machine.interrupt().restore(intStatus);
+    }
 
-    public void waitUntil(long x) {
+    /**
+     * Wake up a thread sleeping in <tt>waitUntil()</tt> before its time. A
+     * thread waiting for some event with a timeout calls
+     * <tt>waitUntil()</tt>, and whoever signals the event calls
+     * <tt>cancel()</tt>; the thread wakes up at whichever comes first.
+     *
+     * @param	thread	the thread to wake up.
+     * @return	<tt>true</tt> if the thread was sleeping in
+     *		<tt>waitUntil()</tt>, <tt>false</tt> if it had already woken
+     *		up or was never asleep.
+     */
+    public boolean cancel(KThread thread) {
+	boolean intStatus = Machine.interrupt().disable();
 
-	// for now, cheat just to get something working (busy waiting is bad)
-	long wakeTime = Machine.timer().getTime() + x;
-	//while (wakeTime > Machine.timer().getTime())
-	//    KThread.yield();
+	Sleeper sleeper = sleeping.remove(thread);
+	if (sleeper != null) {
+	    // left in the heap, and skipped when it gets to the top
+	    sleeper.cancelled = true;
+	    thread.ready();
 
-	boolean intStatus = Machine.interrupt().disable();
+	    if (sleepers.peek() == sleeper)
+		setAlarm();
+	}
 
-	KThread thread = KThread.currentThread();
+	Machine.interrupt().restore(intStatus);
+	return (sleeper != null);
+    }
 
-	Union union = new Union(thread, wakeTime);
+    /** A thread in <tt>waitUntil()</tt>, and when to wake it up. */
+    private static class Sleeper implements Comparable<Sleeper> {
+	Sleeper(KThread thread, long wakeTime) {
+	    this.thread = thread;
+	    this.wakeTime = wakeTime;
+	    this.id = numSleepers++;
+	}
 
-	priorityQueue.add(union);
+	/** Earliest wake time first, and in order of arrival for ties. */
+	public int compareTo(Sleeper sleeper) {
+	    if (wakeTime != sleeper.wakeTime)
+		return (wakeTime < sleeper.wakeTime) ? -1 : 1;
+	    else if (id != sleeper.id)
+		return (id < sleeper.id) ? -1 : 1;
+	    else
+		return 0;
+	}
 
-	KThread.sleep();
+	KThread thread;
+	long wakeTime;
+	long id;
+	boolean cancelled = false;
 
-	Machine.interrupt().restore(intStatus);
-	
+	private static long numSleepers = 0;
     }
+
+    /** The sleeping threads, earliest wake time at the top. */
+    private PriorityQueue<Sleeper> sleepers = new PriorityQueue<Sleeper>();
+    /** The entry in <tt>sleepers</tt> for each sleeping thread. */
+    private HashMap<KThread, Sleeper> sleeping =
+	new HashMap<KThread, Sleeper>();
 }
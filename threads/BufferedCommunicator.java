@@ -0,0 +1,254 @@
+package nachos.threads;
+
+import nachos.machine.*;
+
+/**
+ * A <i>buffered communicator</i> passes 32-bit messages from speakers to
+ * listeners through a bounded buffer. Unlike a <tt>Communicator</tt>,
+ * speakers and listeners do not rendezvous: a speaker only waits when the
+ * buffer is full, and a listener only waits when it is empty. Words are
+ * received in the order they were spoken.
+ *
+ * <p>
+ * Whole arrays of words can be spoken and listened to at once, which moves
+ * as many words as fit per lock acquisition and context switch, and there
+ * are non-blocking variants that move only what they can right away. A
+ * pipeline of threads connected this way switches once per buffer-full
+ * rather than several times per word.
+ */
+public class BufferedCommunicator {
+    /**
+     * Allocate a new buffered communicator.
+     *
+     * @param	capacity	the number of words the buffer holds.
+     */
+    public BufferedCommunicator(int capacity) {
+	Lib.assertTrue(capacity > 0);
+
+	buffer = new int[capacity];
+	lock = new Lock();
+	notFull = new Condition(lock);
+	notEmpty = new Condition(lock);
+    }
+
+    /**
+     * Put <i>word</i> in the buffer, waiting for room if it is full.
+     *
+     * @param	word	the integer to transfer.
+     */
+    public void speak(int word) {
+	speak(new int[] { word }, 0, 1);
+    }
+
+    /**
+     * Put all of <i>words</i> in the buffer, in order, waiting for room as
+     * often as necessary. If several speakers are waiting, their words may
+     * be interleaved.
+     *
+     * @param	words	the integers to transfer.
+     */
+    public void speak(int[] words) {
+	speak(words, 0, words.length);
+    }
+
+    /**
+     * Put <i>length</i> words from <i>words</i>, starting at
+     * <i>offset</i>, in the buffer, waiting for room as often as necessary.
+     *
+     * @param	words	the array holding the integers to transfer.
+     * @param	offset	the index of the first integer to transfer.
+     * @param	length	the number of integers to transfer.
+     */
+    public void speak(int[] words, int offset, int length) {
+	Lib.assertTrue(offset >= 0 && length >= 0 &&
+		       offset+length <= words.length);
+
+	lock.acquire();
+
+	while (length > 0) {
+	    while (count == buffer.length)
+		notFull.sleep();
+
+	    int amount = put(words, offset, length);
+	    offset += amount;
+	    length -= amount;
+	}
+
+	lock.release();
+    }
+
+    /**
+     * Put <i>word</i> in the buffer if there is room, without waiting.
+     *
+     * @param	word	the integer to transfer.
+     * @return	<tt>true</tt> if the word was put in the buffer.
+     */
+    public boolean trySpeak(int word) {
+	return (trySpeak(new int[] { word }) == 1);
+    }
+
+    /**
+     * Put as many of <i>words</i> in the buffer as fit, without waiting.
+     *
+     * @param	words	the integers to transfer.
+     * @return	the number of words, from the start of <i>words</i>, that
+     *		were put in the buffer.
+     */
+    public int trySpeak(int[] words) {
+	lock.acquire();
+	int amount = put(words, 0, words.length);
+	lock.release();
+
+	return amount;
+    }
+
+    /**
+     * Take the next word out of the buffer, waiting for one if it is empty.
+     *
+     * @return	the integer transferred.
+     */
+    public int listen() {
+	int[] word = new int[1];
+	listen(word);
+	return word[0];
+    }
+
+    /**
+     * Take as many words out of the buffer as <i>buf</i> holds, or as the
+     * buffer holds if that is fewer, waiting for at least one word if the
+     * buffer is empty.
+     *
+     * @param	buf	where to store the integers transferred.
+     * @return	the number of words stored in <i>buf</i>, which is at least
+     *		one unless <i>buf</i> is empty.
+     */
+    public int listen(int[] buf) {
+	if (buf.length == 0)
+	    return 0;
+
+	lock.acquire();
+
+	while (count == 0)
+	    notEmpty.sleep();
+
+	int amount = take(buf);
+
+	lock.release();
+	return amount;
+    }
+
+    /**
+     * Take as many words out of the buffer as are available and fit in
+     * <i>buf</i>, without waiting.
+     *
+     * @param	buf	where to store the integers transferred.
+     * @return	the number of words stored in <i>buf</i>, possibly zero.
+     */
+    public int tryListen(int[] buf) {
+	lock.acquire();
+	int amount = take(buf);
+	lock.release();
+
+	return amount;
+    }
+
+    /**
+     * Copy as many words into the buffer as fit, and wake up a listener. The
+     * lock must be held.
+     */
+    private int put(int[] words, int offset, int length) {
+	int amount = Math.min(length, buffer.length - count);
+
+	for (int i=0; i<amount; i++)
+	    buffer[(first + count + i) % buffer.length] = words[offset+i];
+
+	if (amount > 0) {
+	    count += amount;
+
+	    /* Wake one listener. If it leaves words behind, it wakes the
+	     * next one, so a burst of words doesn't wake every listener.
+	     * Likewise pass room left over on to the next speaker.
+	     */
+	    notEmpty.wake();
+	    if (count < buffer.length)
+		notFull.wake();
+	}
+	return amount;
+    }
+
+    /**
+     * Copy as many words out of the buffer as <i>buf</i> holds, and wake
+     * up a speaker if that made room. The lock must be held.
+     */
+    private int take(int[] buf) {
+	int amount = Math.min(buf.length, count);
+
+	for (int i=0; i<amount; i++)
+	    buf[i] = buffer[(first + i) % buffer.length];
+
+	if (amount > 0) {
+	    first = (first + amount) % buffer.length;
+	    count -= amount;
+
+	    notFull.wake();
+	    if (count > 0)
+		notEmpty.wake();
+	}
+	return amount;
+    }
+
+    /**
+     * Tests whether this module is working, by pumping words through a
+     * pipeline of two buffered communicators and three threads.
+     */
+    public static void selfTest() {
+	final BufferedCommunicator in = new BufferedCommunicator(8);
+	final BufferedCommunicator out = new BufferedCommunicator(8);
+	final int numWords = 100;
+
+	// doubles every word on its way from in to out
+	KThread doubler = new KThread(new Runnable() {
+		public void run() {
+		    int[] buf = new int[5];
+		    for (int received=0; received<numWords; ) {
+			int amount = in.listen(buf);
+			for (int i=0; i<amount; i++)
+			    buf[i] *= 2;
+			out.speak(buf, 0, amount);
+			received += amount;
+		    }
+		}
+	    });
+	doubler.setName("doubler").fork();
+
+	KThread producer = new KThread(new Runnable() {
+		public void run() {
+		    int[] words = new int[numWords];
+		    for (int i=0; i<numWords; i++)
+			words[i] = i;
+		    in.speak(words);
+		}
+	    });
+	producer.setName("producer").fork();
+
+	for (int i=0; i<numWords; i++)
+	    Lib.assertTrue(out.listen() == 2*i);
+
+	producer.join();
+	doubler.join();
+
+	Lib.assertTrue(in.tryListen(new int[1]) == 0);
+	Lib.assertTrue(in.trySpeak(new int[10]) == 8);
+	Lib.assertTrue(!in.trySpeak(7));
+	Lib.assertTrue(in.tryListen(new int[10]) == 8);
+    }
+
+    private int[] buffer;
+    /** The index in <tt>buffer</tt> of the oldest word. */
+    private int first = 0;
+    /** The number of words in <tt>buffer</tt>. */
+    private int count = 0;
+
+    private Lock lock;
+    private Condition notFull, notEmpty;
+}
@@ -299,7 +299,7 @@ public class KThread {
 	Lib.assertTrue(idleThread == null);
 	
 	idleThread = new KThread(new Runnable() {
-	    public void run() { while (true) yield(); }
+	    public void run() { while (true) idle(); }
 	});
 	idleThread.setName("idle");
 
@@ -308,6 +308,29 @@ public class KThread {
 	idleThread.fork();
     }
     
+    /**
+     * One pass of the idle thread's loop. If another thread is ready, yield
+     * to it. Otherwise, nothing can run until an interrupt readies a thread,
+     * so skip simulated time ahead to the next pending interrupt rather than
+     * spinning one tick at a time.
+     */
+    private static void idle() {
+	Lib.assertTrue(currentThread == idleThread);
+
+	boolean intStatus = Machine.interrupt().disable();
+
+	KThread nextThread = readyQueue.nextThread();
+	if (nextThread != null) {
+	    currentThread.ready();
+	    nextThread.run();
+	}
+	else {
+	    Machine.interrupt().idle();
+	}
+
+	Machine.interrupt().restore(intStatus);
+    }
+
     /**
      * Determine the next thread to run, then dispatch the CPU to the thread
      * using <tt>run()</tt>.
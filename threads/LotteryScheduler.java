@@ -2,7 +2,7 @@ package nachos.threads;
 
 import nachos.machine.*;
 
-import java.util.*;
+import java.util.LinkedList;
 
 /**
  * Project 1 Task 5
@@ -10,10 +10,14 @@ import java.util.*;
  *
  * If we regard thread A as thread B's father when A holds some resource B needs
  * directly, then they consist of a tree, so we use holdThread to represent the
- * parent, waitThreads to represent the children, waitQueue to represent the
- * ancestors, and holdQueues to represent the descendants. Also, there are only
- * constant possible value of priority, so waitThreads[i] represents the children
- * whose priority is i, and we use TreeSet to store them.
+ * parent, waitQueue to represent the edge to the parent, and holdQueues to
+ * represent the children. A thread's tickets are its own priority plus the
+ * tickets of every thread waiting on a queue it holds.
+ *
+ * Each queue keeps its waiters' tickets in a Fenwick tree indexed by slot, so
+ * drawing a winner and changing one waiter's tickets both take O(log n).
+ * Since donated tickets simply add up, a change of d tickets is passed up the
+ * chain of holders as "add d" at every level, without recomputing any sums.
  */
 
 /**
@@ -43,6 +47,76 @@ public class LotteryScheduler extends Scheduler {
     public LotteryScheduler() {
     }
 
+    /**
+     * Test that tickets are donated through long chains of locks, and that
+     * winners are drawn in proportion to their tickets.
+     */
+    public static void selfTest() {
+        boolean intStatus = Machine.interrupt().disable();
+
+        LotteryScheduler scheduler = new LotteryScheduler();
+        scheduler.chainTest(2000);
+        scheduler.drawTest();
+
+        Machine.interrupt().restore(intStatus);
+    }
+
+    /**
+     * Thread i holds lock i and waits for lock i-1, so thread i ends up
+     * with the tickets of every thread after it.
+     */
+    private void chainTest(int length) {
+        KThread[] threads = new KThread[length];
+        ThreadQueue[] locks = new ThreadQueue[length];
+
+        for (int i=0; i<length; i++) {
+            threads[i] = new KThread().setName("donor " + i);
+            locks[i] = newThreadQueue(true);
+            locks[i].acquire(threads[i]);
+            if (i > 0)
+                locks[i-1].waitForAccess(threads[i]);
+        }
+
+        for (int i=0; i<length; i++)
+            Lib.assertTrue(getEffectivePriority(threads[i]) == length-i);
+
+        setPriority(threads[length-1], 11);
+        for (int i=0; i<length; i++)
+            Lib.assertTrue(getEffectivePriority(threads[i]) == length-i+10);
+
+        // thread 0 releases lock 0, which goes to thread 1, its only waiter
+        Lib.assertTrue(locks[0].nextThread() == threads[1]);
+        Lib.assertTrue(getEffectivePriority(threads[0]) == 1);
+        Lib.assertTrue(getEffectivePriority(threads[1]) == length-1+10);
+    }
+
+    /**
+     * Draw repeatedly from a queue of 20 threads, where the last one holds
+     * 76 tickets and the others one each, and check that the last one wins
+     * most of the time.
+     */
+    private void drawTest() {
+        ThreadQueue queue = newThreadQueue(false);
+        KThread[] threads = new KThread[20];
+
+        for (int i=0; i<threads.length; i++) {
+            threads[i] = new KThread().setName("drawn " + i);
+            queue.waitForAccess(threads[i]);
+        }
+        setPriority(threads[19], 76);
+
+        int wins = 0, draws = 1000;
+        for (int i=0; i<draws; i++) {
+            KThread winner = queue.nextThread();
+            if (winner == threads[19])
+                wins++;
+            queue.waitForAccess(winner);
+        }
+
+        // expect 800 wins; 700 is more than 7 standard deviations away
+        Lib.assertTrue(wins > 700 && wins < 900);
+    }
+
     /**
      * Allocate a new priority thread queue.
      *
@@ -134,14 +208,12 @@ public class LotteryScheduler extends Scheduler {
     }
 
     /**
-     * A <tt>ThreadQueue</tt> that sorts threads by priority.
+     * A <tt>ThreadQueue</tt> that holds a lottery among its waiting threads,
+     * each thread's chance of winning being proportional to its tickets.
      */
     protected class LotteryQueue extends ThreadQueue {
         LotteryQueue(boolean transferPriority) {
             this.transferPriority = transferPriority;
-		/*for(int i = priorityMinimum;i <= priorityMaximum;i++)
-			waitThreads[i] = new TreeSet<ThreadState>(); */
-            waitThreadsSet = new TreeSet<>();
         }
 
         public void waitForAccess(KThread thread) {
@@ -152,91 +224,151 @@ public class LotteryScheduler extends Scheduler {
         public void acquire(KThread thread) {
             Lib.assertTrue(Machine.interrupt().disabled());
             getThreadState(thread).acquire(this);
-            if(transferPriority) //
-                holdThread = getThreadState(thread);
         }
 
         public KThread nextThread() {
             Lib.assertTrue(Machine.interrupt().disabled());
             // implement me
-            ThreadState temp = pickNextThread(); //
-            if(temp == null) //
+            if (holdThread != null) //
+                holdThread.release(this);
+
+            ThreadState winner = pickNextThread(); //
+            if (winner == null) //
                 return null;
-            else
-                return temp.thread;
+
+            remove(winner);
+            winner.acquire(this);
+            return winner.thread;
         }
 
         /**
-         * Return the next thread that <tt>nextThread()</tt> would return,
+         * Draw the next thread that <tt>nextThread()</tt> would return,
          * without modifying the state of this queue.
          *
          * @return	the next thread that <tt>nextThread()</tt> would
          *		return.
          */
+        protected ThreadState pickNextThread() {
+            // implement me
+            if (count == 0) //
+                return null;
 
-        protected ThreadState NextThread() { //
-
-            int sum = 0;
-	    if (waitThreadsSet.isEmpty()) return null;
-            for (ThreadState threadState : waitThreadsSet) {
-                sum += threadState.getEffectivePriority();
-            }
-
-            int tmp = 0;
-            int lotteryValue = (new Random()).nextInt(sum) + 1;
-
-            for (ThreadState threadState : waitThreadsSet) {
-                tmp += threadState.effectivePriority;
-                if (tmp >= lotteryValue) {
-                    waitThreadsSet.remove(threadState);
-                    return threadState;
+            // nobody has any tickets, so anybody will do
+            if (totalTickets == 0) {
+                for (int slot=0; ; slot++) {
+                    if (slots[slot] != null)
+                        return slots[slot];
                 }
             }
-            return null;
-        }
 
-        protected ThreadState pickNextThread() {
-            // implement me
-            ThreadState res = NextThread(); //
-            if(holdThread!=null) //
-            {
-                holdThread.holdQueues.remove(this);
-                holdThread.getEffectivePriority();
-                holdThread=res;
+            long ticket;
+            if (totalTickets <= Integer.MAX_VALUE)
+                ticket = Lib.random((int) totalTickets);
+            else
+                ticket = (long) (Lib.random() * totalTickets);
+
+            // find the slot whose range of tickets includes ticket
+            int index = 0;
+            for (int step=Integer.highestOneBit(slots.length); step>0;
+                 step>>=1) {
+                if (index+step <= slots.length && tree[index+step] <= ticket) {
+                    index += step;
+                    ticket -= tree[index];
+                }
             }
-            if(res!=null) //
-                res.waitQueue = null;
-            return res;
+            return slots[index];
         }
 
         public void print() {
             Lib.assertTrue(Machine.interrupt().disabled());
             // implement me (if you want)
+            for (ThreadState state : slots) { //
+                if (state != null)
+                    System.out.print(" " + state.thread + "(" +
+                                     state.effectivePriority + ")");
+            }
         }
 
-        public void add(ThreadState thread) { //
-            //waitThreads[thread.effectivePriority].add(thread);
-            waitThreadsSet.add(thread);
+        public boolean isEmpty() { //
+            return count == 0;
         }
 
-        public boolean isEmpty() { //
-            return waitThreadsSet.isEmpty();
-		/*for(int i = priorityMinimum;i <= priorityMaximum;i++)
-			if(!waitThreads[i].isEmpty())
-				return false;
-		return true;*/
+        /**
+         * Put a thread in a free slot, with its current tickets.
+         */
+        void add(ThreadState state) { //
+            if (numFree == 0)
+                grow();
+
+            state.slot = freeSlots[--numFree];
+            slots[state.slot] = state;
+            count++;
+            addTickets(state.slot, state.effectivePriority);
+        }
+
+        /**
+         * Take a thread out of its slot, along with its tickets.
+         */
+        void remove(ThreadState state) { //
+            addTickets(state.slot, -state.effectivePriority);
+            slots[state.slot] = null;
+            freeSlots[numFree++] = state.slot;
+            count--;
+
+            state.waitQueue = null;
+        }
+
+        /**
+         * Add <tt>delta</tt> tickets to the thread in the specified slot.
+         */
+        void addTickets(int slot, long delta) { //
+            totalTickets += delta;
+            for (int i=slot+1; i<=slots.length; i+=i&-i)
+                tree[i] += delta;
+        }
+
+        /**
+         * Double the number of slots, and rebuild the tree around them.
+         */
+        private void grow() { //
+            int oldLength = slots.length;
+            int newLength = Math.max(2*oldLength, initialSlots);
+
+            ThreadState[] oldSlots = slots;
+            slots = new ThreadState[newLength];
+            System.arraycopy(oldSlots, 0, slots, 0, oldLength);
+
+            // every old slot is in use, so only the new ones are free
+            freeSlots = new int[newLength];
+            for (int slot=newLength-1; slot>=oldLength; slot--)
+                freeSlots[numFree++] = slot;
+
+            tree = new long[newLength+1];
+            for (int i=1; i<=newLength; i++) {
+                if (slots[i-1] != null)
+                    tree[i] += slots[i-1].effectivePriority;
+                int parent = i + (i&-i);
+                if (parent <= newLength)
+                    tree[parent] += tree[i];
+            }
         }
 
         /**
          * <tt>true</tt> if this queue should transfer priority from waiting
          * threads to the owning thread.
          */
-        protected long cnt = 0; //
         public boolean transferPriority;
-        //protected TreeSet<ThreadState> waitThreads[] = new TreeSet[priorityMaximum+1];
-        protected TreeSet<ThreadState> waitThreadsSet = new TreeSet<>();
+        /** The waiting threads, by slot; <tt>null</tt> for a free slot. */
+        protected ThreadState[] slots = new ThreadState[0]; //
+        /** A Fenwick tree of the tickets held by each slot. */
+        protected long[] tree = new long[1]; //
+        /** The free slots, used as a stack. */
+        protected int[] freeSlots = new int[0]; //
+        protected int numFree = 0, count = 0; //
+        /** The tickets of all waiting threads together. */
+        protected long totalTickets = 0; //
+        /** The thread holding this queue, if it transfers priority. */
         protected ThreadState holdThread = null; //
-
     }
 
     /**
@@ -246,7 +378,7 @@ public class LotteryScheduler extends Scheduler {
      *
      * @see	nachos.threads.KThread#schedulingState
      */
-    protected class ThreadState /**/implements Comparable<ThreadState>/**/{
+    protected class ThreadState {
         /**
          * Allocate a new <tt>ThreadState</tt> object and associate it with the
          * specified thread.
@@ -255,31 +387,7 @@ public class LotteryScheduler extends Scheduler {
          */
         public ThreadState(KThread thread) {
             this.thread = thread;
-            setPriority(priorityDefault);
-            getEffectivePriority(); //
-        }
-
-	/*public int compareTo(ThreadState target) { //
-		if(time > target.time)
-			return 1;
-		else if(time == target.time)
-			return 0;
-		else
-			return -1;
-	}*/
-
-        public int compareTo(ThreadState target) {
-            if (this.effectivePriority > target.effectivePriority)
-                return 1;
-            else if (this.effectivePriority < target.effectivePriority)
-                return -1;
-            else {
-                if (this.time > target.time)
-                    return 1;
-                if (this.time < target.time)
-                    return -1;
-                return 0;
-            }
+            this.priority = this.effectivePriority = priorityDefault; //
         }
 
         /**
@@ -296,39 +404,9 @@ public class LotteryScheduler extends Scheduler {
          *
          * @return	the effective priority of the associated thread.
          */
-        public int getEffectivePriority() { //
+        public int getEffectivePriority() {
             // implement me
-            int i,temp = priority;
-            if(!holdQueues.isEmpty())
-            {
-                Iterator<LotteryQueue> iterator=holdQueues.iterator();
-                while(iterator.hasNext())
-                {
-                    LotteryQueue holdQueue = (LotteryQueue)iterator.next();
-
-                    for (ThreadState threadState : holdQueue.waitThreadsSet) {
-                        temp += threadState.effectivePriority;
-                    }
-
-                    /*int maxPriority = 0;
-                    if (holdQueue.waitThreadsSet.isEmpty() == false)
-                        maxPriority = holdQueue.waitThreadsSet.last().effectivePriority;
-                    if (maxPriority > temp)
-                        temp = maxPriority;*/
-                }
-            }
-            if(waitQueue!=null&&temp!=effectivePriority)
-            {
-                //((PriorityQueue)waitQueue).waitThreads[effectivePriority].remove(this);
-                //((PriorityQueue)waitQueue).waitThreads[temp].add(this);
-                ((LotteryQueue) waitQueue).waitThreadsSet.remove(this);
-                this.effectivePriority = temp;
-                ((LotteryQueue) waitQueue).waitThreadsSet.add(this);
-            }
-            if(holdThread!=null)
-                holdThread.getEffectivePriority();
-            return (effectivePriority=temp);
-            //return priority;
+            return effectivePriority; //
         }
 
         /**
@@ -340,10 +418,11 @@ public class LotteryScheduler extends Scheduler {
             if (this.priority == priority)
                 return;
 
+            int delta = priority - this.priority;
             this.priority = priority;
 
             // implement me
-            getEffectivePriority(); //
+            donate(delta); //
         }
 
         /**
@@ -361,11 +440,13 @@ public class LotteryScheduler extends Scheduler {
         public void waitForAccess(LotteryQueue waitQueue) { //
             // implement me
             Lib.assertTrue(Machine.interrupt().disabled());
-            time=++waitQueue.cnt;
-            this.waitQueue=waitQueue;
+            Lib.assertTrue(this.waitQueue == null);
+
+            this.waitQueue = waitQueue;
             waitQueue.add(this);
-            holdThread=waitQueue.holdThread;
-            getEffectivePriority();
+
+            if (waitQueue.transferPriority && waitQueue.holdThread != null)
+                waitQueue.holdThread.donate(effectivePriority);
         }
 
         /**
@@ -381,19 +462,61 @@ public class LotteryScheduler extends Scheduler {
         public void acquire(LotteryQueue waitQueue) { //
             // implement me
             Lib.assertTrue(Machine.interrupt().disabled());
-            if(waitQueue.transferPriority)
-                holdQueues.add(waitQueue);
-            Lib.assertTrue(waitQueue.isEmpty());
+            if (!waitQueue.transferPriority)
+                return;
+
+            if (waitQueue.holdThread != null)
+                waitQueue.holdThread.release(waitQueue);
+
+            waitQueue.holdThread = this;
+            holdQueues.add(waitQueue);
+            donate(waitQueue.totalTickets);
+        }
+
+        /**
+         * Stop holding the specified queue, giving back its tickets.
+         *
+         * @param	holdQueue	a queue this thread holds.
+         */
+        void release(LotteryQueue holdQueue) { //
+            holdQueues.remove(holdQueue);
+            holdQueue.holdThread = null;
+            donate(-holdQueue.totalTickets);
+        }
+
+        /**
+         * Add <tt>delta</tt> tickets to this thread, and to every thread up
+         * the chain of holders that this thread is donating to.
+         */
+        private void donate(long delta) { //
+            ThreadState state = this;
+
+            while (delta != 0) {
+                LotteryQueue queue = state.waitQueue;
+                if (queue != null)
+                    queue.addTickets(state.slot, delta);
+                state.effectivePriority += delta;
+
+                if (queue == null || !queue.transferPriority)
+                    return;
+                state = queue.holdThread;
+                if (state == null)
+                    return;
+            }
         }
 
         /** The thread with which this object is associated. */
         protected KThread thread;
         /** The priority of the associated thread. */
         protected int priority/**/, effectivePriority;
-        protected long time; //
-        protected ThreadQueue waitQueue=null; //
-        protected LinkedList<LotteryQueue> holdQueues = new LinkedList<>(); //
-        protected ThreadState holdThread=null; //
+        /** The queue this thread is waiting on, if any. */
+        protected LotteryQueue waitQueue = null; //
+        /** This thread's slot in <tt>waitQueue</tt>. */
+        protected int slot; //
+        /** The priority-transferring queues this thread holds. */
+        protected LinkedList<LotteryQueue> holdQueues =
+            new LinkedList<LotteryQueue>(); //
     }
-}
 
+    private static final int initialSlots = 8;
+}
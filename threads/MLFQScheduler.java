@@ -0,0 +1,353 @@
+package nachos.threads;
+
+import nachos.machine.*;
+
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.Iterator;
+
+/**
+ * A multi-level feedback queue scheduler. Threads are kept in a number of
+ * FIFO queues, one per level; the next thread to receive access is the first
+ * thread of the highest non-empty level (level 0).
+ *
+ * <p>
+ * Threads start at level 0. A thread that keeps running through timer
+ * interrupts, as a CPU-bound thread does, uses up its allotment of timer
+ * quanta at its level and is moved down one level, where the allotment is
+ * twice as large. A thread that blocks waiting for input, on the console or
+ * on a network port, goes back to level 0 when it wakes up, so interactive
+ * threads stay responsive however long they have been running. Every so often
+ * all threads go back to level 0, so that threads at the bottom level are not
+ * starved.
+ *
+ * <p>
+ * The number of levels, the allotment at level 0 and the boost interval, all
+ * in timer quanta, come from <tt>MLFQScheduler.levels</tt>,
+ * <tt>MLFQScheduler.allotment</tt> and <tt>MLFQScheduler.boostInterval</tt>
+ * in <tt>nachos.conf</tt>.
+ */
+public class MLFQScheduler extends Scheduler {
+    /**
+     * Allocate a new MLFQ scheduler.
+     */
+    public MLFQScheduler() {
+	this(Config.getInteger("MLFQScheduler.levels", 3),
+	     Config.getInteger("MLFQScheduler.allotment", 2),
+	     Config.getInteger("MLFQScheduler.boostInterval", 50));
+    }
+
+    private MLFQScheduler(int numLevels, int allotment, int boostInterval) {
+	Lib.assertTrue(numLevels > 0 && allotment > 0 && boostInterval >= 0);
+
+	this.numLevels = numLevels;
+	this.allotment = allotment;
+	this.boostInterval = boostInterval;
+    }
+
+    /**
+     * Test that threads are demoted as they use up their allotments, which
+     * double at each level, that the highest level runs first, and that
+     * threads go back to level 0 at a boost and after waiting for input.
+     * Uses its own schedulers, with 3 levels and an allotment of 2 quanta,
+     * whatever <tt>nachos.conf</tt> says.
+     */
+    public static void selfTest() {
+	boolean intStatus = Machine.interrupt().disable();
+
+	new MLFQScheduler(3, 2, 0).demotionTest();
+	new MLFQScheduler(3, 2, 10).boostTest();
+	new MLFQScheduler(3, 2, 0).inputTest();
+
+	Machine.interrupt().restore(intStatus);
+    }
+
+    /**
+     * Charge a thread quantum by quantum and check where it is demoted:
+     * after 2 quanta at level 0, 4 at level 1, and never below level 2.
+     */
+    private void demotionTest() {
+	KThread thread = new KThread().setName("demoted");
+
+	charge(thread, 1);
+	Lib.assertTrue(getPriority(thread) == 0);
+	charge(thread, 1);
+	Lib.assertTrue(getPriority(thread) == 1);
+	charge(thread, 3);
+	Lib.assertTrue(getPriority(thread) == 1);
+	charge(thread, 1);
+	Lib.assertTrue(getPriority(thread) == 2);
+	charge(thread, 100);
+	Lib.assertTrue(getPriority(thread) == 2);
+
+	// a new thread at level 0 goes ahead of the demoted one
+	KThread fresh = new KThread().setName("fresh");
+	ThreadQueue queue = newThreadQueue(false);
+	queue.waitForAccess(thread);
+	queue.waitForAccess(fresh);
+	Lib.assertTrue(queue.nextThread() == fresh);
+	Lib.assertTrue(queue.nextThread() == thread);
+	Lib.assertTrue(queue.nextThread() == null);
+    }
+
+    /**
+     * Demote two threads and queue them, then run out the boost interval,
+     * and check that both are back at level 0, on the queue as well.
+     */
+    private void boostTest() {
+	KThread low = new KThread().setName("low");
+	KThread middle = new KThread().setName("middle");
+	KThread fresh = new KThread().setName("fresh");
+
+	charge(low, 6);
+	charge(middle, 2);
+	Lib.assertTrue(getPriority(low) == 2 && getPriority(middle) == 1);
+
+	ThreadQueue queue = newThreadQueue(false);
+	queue.waitForAccess(low);
+	queue.waitForAccess(middle);
+
+	// the tenth quantum starts a new epoch
+	charge(new KThread().setName("running"), 2);
+	Lib.assertTrue(getPriority(low) == 0 && getPriority(middle) == 0);
+
+	// they are now level with a thread that was never demoted
+	queue.waitForAccess(fresh);
+	Lib.assertTrue(queue.nextThread() == middle);
+	Lib.assertTrue(queue.nextThread() == low);
+	Lib.assertTrue(queue.nextThread() == fresh);
+    }
+
+    /**
+     * Check that a demoted thread that waited for input rejoins a queue at
+     * level 0, but only once, and that one that did not stays where it is.
+     */
+    private void inputTest() {
+	KThread waiter = new KThread().setName("waiter");
+	KThread other = new KThread().setName("other");
+	charge(waiter, 2);
+	charge(other, 2);
+
+	waitingForInput(waiter);
+
+	ThreadQueue queue = newThreadQueue(false);
+	queue.waitForAccess(other);
+	queue.waitForAccess(waiter);
+	Lib.assertTrue(getPriority(waiter) == 0 && getPriority(other) == 1);
+	Lib.assertTrue(queue.nextThread() == waiter);
+	Lib.assertTrue(queue.nextThread() == other);
+
+	charge(waiter, 2);
+	queue.waitForAccess(waiter);
+	Lib.assertTrue(getPriority(waiter) == 1);
+	Lib.assertTrue(queue.nextThread() == waiter);
+    }
+
+    /**
+     * Charge a thread for some timer quanta, as if it had run through them.
+     */
+    private void charge(KThread thread, int quanta) {
+	for (int i=0; i<quanta; i++)
+	    quantumExpired(thread);
+    }
+
+    /**
+     * Allocate a new multi-level queue.
+     *
+     * @param	transferPriority	ignored. MLFQ schedulers do not donate
+     *					priority.
+     * @return	a new multi-level queue.
+     */
+    public ThreadQueue newThreadQueue(boolean transferPriority) {
+	return new MultiLevelQueue();
+    }
+
+    /**
+     * Return the level of the specified thread, 0 being the highest.
+     */
+    public int getPriority(KThread thread) {
+	Lib.assertTrue(Machine.interrupt().disabled());
+
+	return getThreadState(thread).getLevel();
+    }
+
+    public int getEffectivePriority(KThread thread) {
+	return getPriority(thread);
+    }
+
+    /**
+     * Charge the thread running at a timer interrupt for a quantum, and move
+     * it down a level once it has used its allotment. Also boost every
+     * thread back to level 0 every <tt>boostInterval</tt> quanta.
+     */
+    public void quantumExpired(KThread thread) {
+	Lib.assertTrue(Machine.interrupt().disabled());
+
+	if (boostInterval > 0 && ++quanta % boostInterval == 0)
+	    epoch++;
+
+	getThreadState(thread).charge();
+    }
+
+    /**
+     * Remember that the thread is waiting for input, so that it goes back to
+     * level 0 when it is woken up.
+     */
+    public void waitingForInput(KThread thread) {
+	getThreadState(thread).boostPending = true;
+    }
+
+    /**
+     * Return the scheduling state of the specified thread.
+     *
+     * @param	thread	the thread whose scheduling state to return.
+     * @return	the scheduling state of the specified thread.
+     */
+    protected ThreadState getThreadState(KThread thread) {
+	if (thread.schedulingState == null)
+	    thread.schedulingState = new ThreadState();
+
+	return (ThreadState) thread.schedulingState;
+    }
+
+    private class MultiLevelQueue extends ThreadQueue {
+	MultiLevelQueue() {
+	    levels = new ArrayList<LinkedList<KThread>>(numLevels);
+	    for (int i=0; i<numLevels; i++)
+		levels.add(new LinkedList<KThread>());
+	}
+
+	/**
+	 * Add a thread to the end of the queue for its level. A thread woken
+	 * up after waiting for input goes to level 0.
+	 *
+	 * @param	thread	the thread to append to the queue.
+	 */
+	public void waitForAccess(KThread thread) {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+
+	    mergeAfterBoost();
+
+	    ThreadState state = getThreadState(thread);
+	    if (state.boostPending && thread != KThread.currentThread()) {
+		state.boostPending = false;
+		state.reset();
+	    }
+
+	    levels.get(state.getLevel()).add(thread);
+	}
+
+	/**
+	 * Remove the first thread of the highest non-empty level.
+	 *
+	 * @return	the first thread on the queue, or <tt>null</tt> if the
+	 *		queue is empty.
+	 */
+	public KThread nextThread() {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+
+	    mergeAfterBoost();
+
+	    for (int i=0; i<numLevels; i++) {
+		if (!levels.get(i).isEmpty())
+		    return levels.get(i).removeFirst();
+	    }
+	    return null;
+	}
+
+	/**
+	 * After a boost, everyone waiting is at level 0, so move them there,
+	 * ahead of any thread that arrives later.
+	 */
+	private void mergeAfterBoost() {
+	    if (queueEpoch == epoch)
+		return;
+
+	    for (int i=1; i<numLevels; i++) {
+		levels.get(0).addAll(levels.get(i));
+		levels.get(i).clear();
+	    }
+	    queueEpoch = epoch;
+	}
+
+	/**
+	 * The specified thread has received exclusive access, without using
+	 * <tt>waitForAccess()</tt> or <tt>nextThread()</tt>. Assert that no
+	 * threads are waiting for access.
+	 */
+	public void acquire(KThread thread) {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+
+	    for (int i=0; i<numLevels; i++)
+		Lib.assertTrue(levels.get(i).isEmpty());
+	}
+
+	/**
+	 * Print out the contents of the queue, one line per level.
+	 */
+	public void print() {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+
+	    for (int i=0; i<numLevels; i++) {
+		System.out.print("\n" + i + ":");
+		for (Iterator<KThread> j=levels.get(i).iterator(); j.hasNext(); )
+		    System.out.print(" " + j.next());
+	    }
+	}
+
+	private ArrayList<LinkedList<KThread>> levels;
+	/** The value of <tt>epoch</tt> when the levels were last merged. */
+	private int queueEpoch = epoch;
+    }
+
+    /**
+     * The level of a thread and how many quanta it has used at that level.
+     * Both are reset lazily after a boost, by comparing <tt>epoch</tt>.
+     */
+    protected class ThreadState {
+	/**
+	 * Return the level of the associated thread.
+	 */
+	int getLevel() {
+	    if (boostEpoch != epoch)
+		reset();
+	    return level;
+	}
+
+	/**
+	 * Put the associated thread back at level 0, with a full allotment.
+	 */
+	void reset() {
+	    level = 0;
+	    used = 0;
+	    boostEpoch = epoch;
+	}
+
+	/**
+	 * Charge the associated thread for one timer quantum.
+	 */
+	void charge() {
+	    int current = getLevel();
+
+	    if (++used >= (allotment << current) && current < numLevels-1) {
+		level = current+1;
+		used = 0;
+	    }
+	}
+
+	/** The level of the thread, 0 being the highest. */
+	protected int level = 0;
+	/** The number of quanta used at <tt>level</tt>. */
+	protected int used = 0;
+	/** The value of <tt>epoch</tt> when the thread was last reset. */
+	protected int boostEpoch = epoch;
+	/** <tt>true</tt> if the thread is blocked waiting for input. */
+	protected boolean boostPending = false;
+    }
+
+    private int numLevels, allotment, boostInterval;
+    /** The number of timer quanta so far. */
+    private long quanta = 0;
+    /** The number of times all threads have been boosted to level 0. */
+    private int epoch = 0;
+}
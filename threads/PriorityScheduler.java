@@ -3,9 +3,8 @@ package nachos.threads;
 import nachos.machine.*;
 
 import java.util.TreeSet;
-import java.util.HashSet;
-import java.util.Iterator;
 import java.util.LinkedList; //
+import java.util.Random;
 
 /**
  * Project 1 Task 5
@@ -13,10 +12,15 @@ import java.util.LinkedList; //
  *
  * If we regard thread A as thread B's father when A holds some resource B needs
  * directly, then they consist of a tree, so we use holdThread to represent the
- * parent, waitThreads to represent the children, waitQueue to represent the
- * ancestors, and holdQueues to represent the descendants. Also, there are only
- * constant possible value of priority, so waitThreads[i] represents the children
- * whose priority is i, and we use TreeSet to store them. 
+ * parent, waitQueue to represent the edge to the parent, and holdQueues to
+ * represent the children. Each queue keeps its waiters in a TreeSet sorted by
+ * effective priority, and caches the highest of them as its donation.
+ *
+ * Effective priorities are kept up to date incrementally: when a thread's
+ * effective priority changes, it is repositioned in the queue it waits on,
+ * and only if that changes the queue's donation do we go on to the holder.
+ * So a change costs O(log n) per level of the chain it actually affects, and
+ * getEffectivePriority() is just a field read.
  */
 
 /**
@@ -45,6 +49,19 @@ public class PriorityScheduler extends Scheduler {
      */
     public PriorityScheduler() {
     }
+
+    /**
+     * Test that priority donation works through long chains of locks and
+     * through queues with many waiters, checking every effective priority
+     * against one recomputed from scratch.
+     */
+    public static void selfTest() {
+	boolean intStatus = Machine.interrupt().disable();
+
+	new DonationTest(new PriorityScheduler()).run();
+
+	Machine.interrupt().restore(intStatus);
+    }
     
     /**
      * Allocate a new priority thread queue.
@@ -142,9 +159,6 @@ public class PriorityScheduler extends Scheduler {
     protected class PriorityQueue extends ThreadQueue {
 	PriorityQueue(boolean transferPriority) {
 	    this.transferPriority = transferPriority;
-		/*for(int i = priorityMinimum;i <= priorityMaximum;i++)
-			waitThreads[i] = new TreeSet<ThreadState>(); */
-		waitThreadsSet = new TreeSet<>();
 	}
 	
 	public void waitForAccess(KThread thread) {
@@ -155,18 +169,21 @@ public class PriorityScheduler extends Scheduler {
 	public void acquire(KThread thread) {
 	    Lib.assertTrue(Machine.interrupt().disabled());
 	    getThreadState(thread).acquire(this);
-	    if(transferPriority) //
-	    	holdThread = getThreadState(thread);
 	}
 
 	public KThread nextThread() {
 	    Lib.assertTrue(Machine.interrupt().disabled());
 	    // implement me
-	    ThreadState temp = pickNextThread(); //
-	    if(temp == null) //
-	    	return null;
-	    else
-	    	return temp.thread;
+	    if (holdThread != null) //
+		holdThread.release(this);
+
+	    ThreadState next = pickNextThread(); //
+	    if (next == null) //
+		return null;
+
+	    next.stopWaiting();
+	    next.acquire(this);
+	    return next.thread;
 	}
 
 	/**
@@ -176,59 +193,59 @@ public class PriorityScheduler extends Scheduler {
 	 * @return	the next thread that <tt>nextThread()</tt> would
 	 *		return.
 	 */
-	
-	protected ThreadState NextThread() { //
-		ThreadState res=null;
-		/*for(int i=priorityMaximum;i>=priorityMinimum;i--)
-			if((res=waitThreads[i].pollFirst())!=null)
-				break;*/
-
-		res = waitThreadsSet.pollLast();
-		return res;
-	}
-	
 	protected ThreadState pickNextThread() {
 	    // implement me
-		ThreadState res = NextThread(); //
-		if(holdThread!=null) //
-		{
-			holdThread.holdQueues.remove(this);
-			holdThread.getEffectivePriority();
-			holdThread=res;
-		}
-		if(res!=null) //
-			res.waitQueue = null;
-	    return res;
+	    if (waitThreadsSet.isEmpty()) //
+		return null;
+	    return waitThreadsSet.first();
 	}
 	
 	public void print() {
 	    Lib.assertTrue(Machine.interrupt().disabled());
 	    // implement me (if you want)
+	    for (ThreadState state : waitThreadsSet) //
+		System.out.print(" " + state.thread + "(" +
+				 state.effectivePriority + ")");
 	}
 
-	public void add(ThreadState thread) { //
-		//waitThreads[thread.effectivePriority].add(thread);
-		waitThreadsSet.add(thread);
-	}
-	
 	public boolean isEmpty() { //
-		return waitThreadsSet.isEmpty();
-		/*for(int i = priorityMinimum;i <= priorityMaximum;i++)
-			if(!waitThreads[i].isEmpty())
-				return false;
-		return true;*/
+	    return waitThreadsSet.isEmpty();
+	}
+
+	/**
+	 * Recompute <tt>donation</tt> after the set of waiters or one of
+	 * their effective priorities has changed.
+	 *
+	 * @return	<tt>true</tt> if the holder of this queue has to update
+	 *		its effective priority.
+	 */
+	boolean updateDonation() { //
+	    int newDonation = waitThreadsSet.isEmpty() ? priorityMinimum
+		: waitThreadsSet.first().effectivePriority;
+
+	    if (newDonation == donation)
+		return false;
+
+	    donation = newDonation;
+	    return transferPriority && holdThread != null;
 	}
 	
 	/**
 	 * <tt>true</tt> if this queue should transfer priority from waiting
 	 * threads to the owning thread.
 	 */
-	protected long cnt = 0; //
 	public boolean transferPriority;
-	//protected TreeSet<ThreadState> waitThreads[] = new TreeSet[priorityMaximum+1];
-	protected TreeSet<ThreadState> waitThreadsSet = new TreeSet<>();
+	/** The number of threads that have ever waited on this queue. */
+	protected long cnt = 0; //
+	/** The waiting threads, highest effective priority first. */
+	protected TreeSet<ThreadState> waitThreadsSet = new TreeSet<ThreadState>();
+	/**
+	 * The highest effective priority of any waiting thread, or
+	 * <tt>priorityMinimum</tt> if there are none.
+	 */
+	protected int donation = priorityMinimum; //
+	/** The thread holding this queue, if it transfers priority. */
 	protected ThreadState holdThread = null; //
-	
     }
 
     /**
@@ -247,31 +264,19 @@ public class PriorityScheduler extends Scheduler {
 	 */
 	public ThreadState(KThread thread) {
 	    this.thread = thread;
-	    setPriority(priorityDefault);
-	    getEffectivePriority(); //
+	    this.priority = this.effectivePriority = priorityDefault; //
 	}
-	
-	/*public int compareTo(ThreadState target) { //
-		if(time > target.time)
-			return 1;
-		else if(time == target.time)
-			return 0;
-		else
-			return -1;
-	}*/
-
-	public int compareTo(ThreadState target) {
-		if (this.effectivePriority > target.effectivePriority)
-			return 1;
-		else if (this.effectivePriority < target.effectivePriority)
-			return -1;
-		else {
-			if (this.time > target.time)
-				return 1;
-			if (this.time < target.time)
-				return -1;
-			return 0;
-		}
+
+	/**
+	 * Order threads by decreasing effective priority, and threads of the
+	 * same effective priority by how long they have been waiting.
+	 */
+	public int compareTo(ThreadState target) { //
+	    if (this.effectivePriority != target.effectivePriority)
+		return this.effectivePriority > target.effectivePriority ? -1 : 1;
+	    if (this.time != target.time)
+		return this.time < target.time ? -1 : 1;
+	    return 0;
 	}
 
 	/**
@@ -288,40 +293,9 @@ public class PriorityScheduler extends Scheduler {
 	 *
 	 * @return	the effective priority of the associated thread.
 	 */
-	public int getEffectivePriority() { //
+	public int getEffectivePriority() {
 	    // implement me
-		int i,temp = priority;
-		if(!holdQueues.isEmpty())
-		{
-			Iterator<PriorityQueue> iterator=holdQueues.iterator();
-			while(iterator.hasNext())
-			{
-				PriorityQueue holdQueue = (PriorityQueue)iterator.next();
-				/*for(i = priorityMaximum;i > temp;i--) {
-					if (!holdQueue.waitThreads[i].isEmpty()) {
-						temp = i;
-						break;
-					}
-				}*/
-				int maxPriority = 0;
-				if (holdQueue.waitThreadsSet.isEmpty() == false)
-					maxPriority = holdQueue.waitThreadsSet.last().effectivePriority;
-				if (maxPriority > temp)
-					temp = maxPriority;
-			}
-		}
-		if(waitQueue!=null&&temp!=effectivePriority)
-		{
-			//((PriorityQueue)waitQueue).waitThreads[effectivePriority].remove(this);
-			//((PriorityQueue)waitQueue).waitThreads[temp].add(this);
-			((PriorityQueue) waitQueue).waitThreadsSet.remove(this);
-			this.effectivePriority = temp;
-			((PriorityQueue) waitQueue).waitThreadsSet.add(this);
-		}
-		if(holdThread!=null)
-			holdThread.getEffectivePriority();
-		return (effectivePriority=temp);
-	    //return priority;
+	    return effectivePriority; //
 	}
 
 	/**
@@ -336,7 +310,7 @@ public class PriorityScheduler extends Scheduler {
 	    this.priority = priority;
 	    
 	    // implement me
-	    getEffectivePriority(); //
+	    updateEffectivePriority(); //
 	}
 
 	/**
@@ -353,12 +327,15 @@ public class PriorityScheduler extends Scheduler {
 	 */
 	public void waitForAccess(PriorityQueue waitQueue) { //
 	    // implement me
-		Lib.assertTrue(Machine.interrupt().disabled());
-		time=++waitQueue.cnt;
-		this.waitQueue=waitQueue;
-		waitQueue.add(this);
-		holdThread=waitQueue.holdThread;
-		getEffectivePriority();
+	    Lib.assertTrue(Machine.interrupt().disabled());
+	    Lib.assertTrue(this.waitQueue == null);
+
+	    time = ++waitQueue.cnt;
+	    this.waitQueue = waitQueue;
+	    waitQueue.waitThreadsSet.add(this);
+
+	    if (waitQueue.updateDonation())
+		waitQueue.holdThread.updateEffectivePriority();
 	}
 
 	/**
@@ -373,20 +350,275 @@ public class PriorityScheduler extends Scheduler {
 	 */
 	public void acquire(PriorityQueue waitQueue) { //
 	    // implement me
-		Lib.assertTrue(Machine.interrupt().disabled());
-		if(waitQueue.transferPriority)
-			holdQueues.add(waitQueue);
-		Lib.assertTrue(waitQueue.isEmpty());
-	}	
+	    Lib.assertTrue(Machine.interrupt().disabled());
+	    if (!waitQueue.transferPriority)
+		return;
+
+	    if (waitQueue.holdThread != null)
+		waitQueue.holdThread.release(waitQueue);
+
+	    waitQueue.holdThread = this;
+	    holdQueues.add(waitQueue);
+
+	    if (waitQueue.donation > effectivePriority)
+		updateEffectivePriority();
+	}
+
+	/**
+	 * Stop holding the specified queue, giving up whatever it donated.
+	 *
+	 * @param	holdQueue	a queue this thread holds.
+	 */
+	void release(PriorityQueue holdQueue) { //
+	    holdQueues.remove(holdQueue);
+	    holdQueue.holdThread = null;
+
+	    if (holdQueue.donation >= effectivePriority)
+		updateEffectivePriority();
+	}
+
+	/**
+	 * Leave the queue this thread is waiting on, after being chosen by
+	 * <tt>nextThread()</tt>.
+	 */
+	void stopWaiting() { //
+	    PriorityQueue queue = waitQueue;
+
+	    queue.waitThreadsSet.remove(this);
+	    waitQueue = null;
+
+	    // the holder is changing anyway, so there's nothing to propagate
+	    queue.updateDonation();
+	}
+
+	/**
+	 * Return what the effective priority of this thread should be: the
+	 * higher of its own priority and what the queues it holds donate.
+	 */
+	private int computeEffectivePriority() { //
+	    int result = priority;
+	    for (PriorityQueue holdQueue : holdQueues) {
+		if (holdQueue.donation > result)
+		    result = holdQueue.donation;
+	    }
+	    return result;
+	}
+
+	/**
+	 * Recompute the effective priority of this thread, and pass the
+	 * change on up the chain of holders for as long as it changes
+	 * anything. Iterative, so chains of any length are fine.
+	 */
+	private void updateEffectivePriority() { //
+	    ThreadState state = this;
+
+	    while (true) {
+		int newPriority = state.computeEffectivePriority();
+		if (newPriority == state.effectivePriority)
+		    return;
+
+		PriorityQueue queue = state.waitQueue;
+		if (queue == null) {
+		    state.effectivePriority = newPriority;
+		    return;
+		}
+
+		// the TreeSet must not see the key change while it holds us
+		queue.waitThreadsSet.remove(state);
+		state.effectivePriority = newPriority;
+		queue.waitThreadsSet.add(state);
+
+		if (!queue.updateDonation())
+		    return;
+		state = queue.holdThread;
+	    }
+	}
 
 	/** The thread with which this object is associated. */
 	protected KThread thread;
 	/** The priority of the associated thread. */
 	protected int priority/**/, effectivePriority;
+	/** When this thread started waiting on <tt>waitQueue</tt>. */
 	protected long time; //
-	protected ThreadQueue waitQueue=null; //
-	protected LinkedList<PriorityQueue> holdQueues = new LinkedList<PriorityQueue>(); //
-	protected ThreadState holdThread=null; //
+	/** The queue this thread is waiting on, if any. */
+	protected PriorityQueue waitQueue = null; //
+	/** The priority-transferring queues this thread holds. */
+	protected LinkedList<PriorityQueue> holdQueues =
+	    new LinkedList<PriorityQueue>(); //
     }
-}
 
+    /**
+     * Builds donation chains and random lock graphs out of threads that are
+     * never forked, and checks the scheduler against a brute-force
+     * recomputation of every effective priority.
+     */
+    private static class DonationTest {
+	DonationTest(PriorityScheduler scheduler) {
+	    this.scheduler = scheduler;
+	}
+
+	void run() {
+	    long start = System.currentTimeMillis();
+
+	    chain(chainLength);
+	    randomGraph(200, 50, 20000);
+
+	    Lib.debug(dbgScheduler, "PriorityScheduler.selfTest: " +
+		      (System.currentTimeMillis() - start) + "ms");
+	}
+
+	/**
+	 * Thread i holds lock i and waits for lock i-1, so whatever the last
+	 * thread gets is donated all the way down to thread 0.
+	 */
+	private void chain(int length) {
+	    KThread[] threads = newThreads(length);
+	    ThreadQueue[] locks = newLocks(length);
+
+	    for (int i=0; i<length; i++) {
+		locks[i].acquire(threads[i]);
+		if (i > 0)
+		    locks[i-1].waitForAccess(threads[i]);
+	    }
+
+	    scheduler.setPriority(threads[length-1], 7);
+	    for (int i=0; i<length; i++)
+		Lib.assertTrue(scheduler.getEffectivePriority(threads[i]) == 7);
+
+	    // a donation in the middle stops where it meets a higher one
+	    scheduler.setPriority(threads[length/2], 5);
+	    Lib.assertTrue(scheduler.getEffectivePriority(threads[0]) == 7);
+
+	    scheduler.setPriority(threads[length-1], priorityDefault);
+	    for (int i=0; i<length; i++) {
+		int expected = (i <= length/2) ? 5 : priorityDefault;
+		Lib.assertTrue(scheduler.getEffectivePriority(threads[i])
+			       == expected);
+	    }
+
+	    // thread 0 releases lock 0, so thread 1 stops donating to it
+	    Lib.assertTrue(locks[0].nextThread() == threads[1]);
+	    Lib.assertTrue(scheduler.getEffectivePriority(threads[0])
+			   == priorityDefault);
+	    Lib.assertTrue(scheduler.getEffectivePriority(threads[1]) == 5);
+	}
+
+	/**
+	 * Apply random priority changes, waits and releases to a graph of
+	 * threads and locks, checking every effective priority as we go.
+	 */
+	private void randomGraph(int numThreads, int numLocks, int steps) {
+	    KThread[] threads = newThreads(numThreads);
+	    ThreadQueue[] locks = newLocks(numLocks);
+	    KThread[] holder = new KThread[numLocks];
+	    int[] waitingFor = new int[numThreads];
+	    Random random = new Random(numThreads);
+
+	    for (int i=0; i<numThreads; i++)
+		waitingFor[i] = -1;
+
+	    for (int step=0; step<steps; step++) {
+		int t = random.nextInt(numThreads);
+		int l = random.nextInt(numLocks);
+
+		switch (random.nextInt(3)) {
+		case 0:
+		    scheduler.setPriority(threads[t], random.nextInt(8));
+		    break;
+		case 1:
+		    // a thread that's waiting can't ask for another lock
+		    if (waitingFor[t] != -1)
+			break;
+		    if (holder[l] == null) {
+			locks[l].acquire(threads[t]);
+			holder[l] = threads[t];
+		    }
+		    else if (holder[l] != threads[t] &&
+			     !wouldDeadlock(t, l, holder, waitingFor, threads)) {
+			locks[l].waitForAccess(threads[t]);
+			waitingFor[t] = l;
+		    }
+		    break;
+		case 2:
+		    if (holder[l] == null)
+			break;
+		    holder[l] = locks[l].nextThread();
+		    for (int i=0; i<numThreads; i++) {
+			if (threads[i] == holder[l])
+			    waitingFor[i] = -1;
+		    }
+		    break;
+		}
+
+		if (step % 100 == 0)
+		    check(threads, holder, waitingFor);
+	    }
+	    check(threads, holder, waitingFor);
+	}
+
+	/** Would thread t waiting for lock l complete a cycle? */
+	private boolean wouldDeadlock(int t, int l, KThread[] holder,
+				      int[] waitingFor, KThread[] threads) {
+	    for (int lock=l; lock != -1; ) {
+		if (holder[lock] == threads[t])
+		    return true;
+		lock = waitingFor[indexOf(threads, holder[lock])];
+	    }
+	    return false;
+	}
+
+	private void check(KThread[] threads, KThread[] holder,
+			   int[] waitingFor) {
+	    for (int i=0; i<threads.length; i++) {
+		Lib.assertTrue(scheduler.getEffectivePriority(threads[i]) ==
+			       expected(i, threads, holder, waitingFor));
+	    }
+	}
+
+	private int expected(int t, KThread[] threads, KThread[] holder,
+			     int[] waitingFor) {
+	    int result = scheduler.getPriority(threads[t]);
+
+	    for (int l=0; l<holder.length; l++) {
+		if (holder[l] != threads[t])
+		    continue;
+		for (int w=0; w<threads.length; w++) {
+		    if (waitingFor[w] == l)
+			result = Math.max(result,
+					  expected(w, threads, holder,
+						   waitingFor));
+		}
+	    }
+	    return result;
+	}
+
+	private static int indexOf(KThread[] threads, KThread thread) {
+	    for (int i=0; i<threads.length; i++) {
+		if (threads[i] == thread)
+		    return i;
+	    }
+	    Lib.assertNotReached();
+	    return -1;
+	}
+
+	private KThread[] newThreads(int n) {
+	    KThread[] threads = new KThread[n];
+	    for (int i=0; i<n; i++)
+		threads[i] = new KThread().setName("donor " + i);
+	    return threads;
+	}
+
+	private ThreadQueue[] newLocks(int n) {
+	    ThreadQueue[] locks = new ThreadQueue[n];
+	    for (int i=0; i<n; i++)
+		locks[i] = scheduler.newThreadQueue(true);
+	    return locks;
+	}
+
+	private PriorityScheduler scheduler;
+
+	private static final int chainLength = 2000;
+    }
+
+    private static final char dbgScheduler = 's';
+}
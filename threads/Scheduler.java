@@ -154,4 +154,36 @@ public abstract class Scheduler {
     public boolean decreasePriority() {
 	return false;
     }
+
+    /**
+     * Tell the scheduler that the specified thread was running when a timer
+     * interrupt occurred, and so has used up a quantum. Called by the timer
+     * interrupt handler, before it makes the thread yield. Schedulers that
+     * adapt to how much CPU time threads use can use this to charge for it.
+     * The default does nothing.
+     *
+     * <p>
+     * Interrupts must be disabled.
+     *
+     * @param	thread	the thread that was running.
+     */
+    public void quantumExpired(KThread thread) {
+	Lib.assertTrue(Machine.interrupt().disabled());
+    }
+
+    /**
+     * Tell the scheduler that the specified thread, which must be the current
+     * thread, is about to block waiting for input, such as a key press or
+     * a network message. Callers do not call this when the input is already
+     * there. Schedulers that favor interactive threads can use
+     * this to run the thread sooner once the input arrives. The default does
+     * nothing.
+     *
+     * <p>
+     * Interrupts need not be disabled.
+     *
+     * @param	thread	the thread that is waiting for input.
+     */
+    public void waitingForInput(KThread thread) {
+    }
 }
@@ -41,14 +41,23 @@ public class ThreadedKernel extends Kernel {
 
     /**
      * Test this kernel. Test the <tt>KThread</tt>, <tt>Semaphore</tt>,
-     * <tt>SynchList</tt>, and <tt>ElevatorBank</tt> classes. Note that the
-     * autograder never calls this method, so it is safe to put additional
-     * tests here.
+     * <tt>SynchList</tt>, <tt>BufferedCommunicator</tt> and
+     * <tt>ElevatorBank</tt> classes, and the
+     * <tt>PriorityScheduler</tt>, <tt>LotteryScheduler</tt> or
+     * <tt>MLFQScheduler</tt> if it is in use. Note that the autograder never
+     * calls this method, so it is safe to put additional tests here.
      */	
     public void selfTest() {
 	KThread.selfTest();
 	Semaphore.selfTest();
 	SynchList.selfTest();
+	BufferedCommunicator.selfTest();
+	if (scheduler instanceof PriorityScheduler)
+	    PriorityScheduler.selfTest();
+	if (scheduler instanceof LotteryScheduler)
+	    LotteryScheduler.selfTest();
+	if (scheduler instanceof MLFQScheduler)
+	    MLFQScheduler.selfTest();
 	if (Machine.bank() != null) {
 	    ElevatorBank.selfTest();
 	}
@@ -79,8 +88,10 @@ public class ThreadedKernel extends Kernel {
     private static RoundRobinScheduler dummy1 = null;
     private static PriorityScheduler dummy2 = null;
     private static LotteryScheduler dummy3 = null;
+    private static MLFQScheduler dummy8 = null;
     private static Condition2 dummy4 = null;
     private static Communicator dummy5 = null;
+    private static BufferedCommunicator dummy9 = null;
     private static Rider dummy6 = null;
     private static ElevatorController dummy7 = null;
 }
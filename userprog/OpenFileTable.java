@@ -0,0 +1,117 @@
+package nachos.userprog;
+
+import nachos.machine.*;
+import nachos.threads.*;
+
+import java.util.HashMap;
+
+/**
+ * The kernel-wide table of files that user processes have open, by name.
+ * Every open file descriptor holds one reference to its file's entry.
+ *
+ * <p>
+ * This is where <tt>unlink()</tt> of an open file is handled: the file
+ * stays in existence until its last reference is closed, and meanwhile
+ * cannot be opened or created again, so no new references to it appear.
+ */
+public class OpenFileTable {
+    /**
+     * Allocate a new, empty open-file table.
+     *
+     * @param	fileSystem	the file system the files live in.
+     */
+    public OpenFileTable(FileSystem fileSystem) {
+	this.fileSystem = fileSystem;
+    }
+
+    /**
+     * Open a file and take a reference to it. Fails if the file has been
+     * unlinked but is still open somewhere.
+     *
+     * @param	name		the name of the file.
+     * @param	truncate	<tt>true</tt> to create the file if it does not
+     *				exist, and truncate it if it does.
+     * @return	the open file, or <tt>null</tt> if it could not be opened.
+     */
+    public OpenFile open(String name, boolean truncate) {
+	lock.acquire();
+
+	Entry entry = entries.get(name);
+	OpenFile file = null;
+	if (entry == null || !entry.unlinked)
+	    file = fileSystem.open(name, truncate);
+
+	if (file != null) {
+	    if (entry == null) {
+		entry = new Entry();
+		entries.put(name, entry);
+	    }
+	    entry.references++;
+	}
+
+	lock.release();
+	return file;
+    }
+
+    /**
+     * Close a file opened by <tt>open()</tt> and drop its reference. If that
+     * was the last reference to an unlinked file, the file is removed now.
+     *
+     * @param	name	the name the file was opened by.
+     * @param	file	the open file.
+     * @return	<tt>true</tt> if the file was closed, and removed if it
+     *		needed to be.
+     */
+    public boolean close(String name, OpenFile file) {
+	lock.acquire();
+
+	file.close();
+
+	boolean success = true;
+	Entry entry = entries.get(name);
+	Lib.assertTrue(entry != null && entry.references > 0);
+
+	if (--entry.references == 0) {
+	    entries.remove(name);
+	    if (entry.unlinked)
+		success = fileSystem.remove(name);
+	}
+
+	lock.release();
+	return success;
+    }
+
+    /**
+     * Remove a file. If it is open, it is removed when its last reference
+     * is closed instead.
+     *
+     * @param	name	the name of the file.
+     * @return	<tt>true</tt> if the file was, or will be, removed.
+     */
+    public boolean unlink(String name) {
+	lock.acquire();
+
+	boolean success;
+	Entry entry = entries.get(name);
+	if (entry == null) {
+	    success = fileSystem.remove(name);
+	}
+	else {
+	    entry.unlinked = true;
+	    success = true;
+	}
+
+	lock.release();
+	return success;
+    }
+
+    /** The references to one open file. */
+    private static class Entry {
+	int references = 0;
+	boolean unlinked = false;
+    }
+
+    private FileSystem fileSystem;
+    private HashMap<String, Entry> entries = new HashMap<String, Entry>();
+    private Lock lock = new Lock();
+}
@@ -7,6 +7,12 @@ import nachos.userprog.*;
 /**
  * Provides a simple, synchronized interface to the machine's console. The
  * interface can also be accessed through <tt>OpenFile</tt> objects.
+ *
+ * <p>
+ * Output goes through a ring buffer that the send interrupt handler drains
+ * one byte at a time, so a writer queues a whole buffer at once and only
+ * waits, and is only woken up, when the ring buffer is full, instead of once
+ * per byte.
  */
 public class SynchConsole {
     /**
@@ -42,6 +48,9 @@ public class SynchConsole {
 	readLock.acquire();
 
 	if (block || charAvailable) {
+	    // readWait.P() only sleeps if no byte has arrived
+	    if (!charAvailable)
+		ThreadedKernel.scheduler.waitingForInput(KThread.currentThread());
 	    charAvailable = false;
 	    readWait.P();
 
@@ -72,14 +81,63 @@ public class SynchConsole {
     }
 
     /**
-     * Send a byte. Blocks until the send is complete.
+     * Queue a byte to be sent. Blocks only if the output buffer is full.
      *
      * @param	value	the byte to be sent (the upper 24 bits are ignored).
      */
     public void writeByte(int value) {
+	writeBytes(new byte[] { (byte) value }, 0, 1);
+    }
+
+    /**
+     * Queue bytes to be sent, in order, without interleaving them with the
+     * bytes of any other writer. Blocks whenever the output buffer is full,
+     * until the send interrupt handler has emptied half of it.
+     *
+     * @param	buf	the buffer holding the bytes to send.
+     * @param	offset	the index in <i>buf</i> of the first byte to send.
+     * @param	length	the number of bytes to send.
+     */
+    public void writeBytes(byte[] buf, int offset, int length) {
 	writeLock.acquire();
-	console.writeByte(value);
-	writeWait.P();
+	boolean intStatus = Machine.interrupt().disable();
+
+	while (length > 0) {
+	    while (writeCount == writeBuffer.length) {
+		writerWaiting = true;
+		writeSpace.P();
+	    }
+
+	    int amount = Math.min(length, writeBuffer.length - writeCount);
+	    for (int i=0; i<amount; i++) {
+		writeBuffer[(writeFirst + writeCount + i) % writeBuffer.length] =
+		    buf[offset+i];
+	    }
+	    writeCount += amount;
+	    offset += amount;
+	    length -= amount;
+
+	    if (!sending)
+		sendNext();
+	}
+
+	Machine.interrupt().restore(intStatus);
+	writeLock.release();
+    }
+
+    /**
+     * Wait until every queued byte has been sent.
+     */
+    public void flush() {
+	writeLock.acquire();
+	boolean intStatus = Machine.interrupt().disable();
+
+	while (sending) {
+	    flushWaiting = true;
+	    writeDrained.P();
+	}
+
+	Machine.interrupt().restore(intStatus);
 	writeLock.release();
     }
 
@@ -92,8 +150,33 @@ public class SynchConsole {
 	return new File(false, true);
     }
 
+    /**
+     * Send the next byte in the output buffer, if there is one. Interrupts
+     * must be disabled.
+     */
+    private void sendNext() {
+	if (writeCount == 0) {
+	    sending = false;
+	    return;
+	}
+
+	console.writeByte(writeBuffer[writeFirst]);
+	writeFirst = (writeFirst + 1) % writeBuffer.length;
+	writeCount--;
+	sending = true;
+    }
+
     private void sendInterrupt() {
-	writeWait.V();
+	sendNext();
+
+	if (writerWaiting && writeCount <= writeBuffer.length/2) {
+	    writerWaiting = false;
+	    writeSpace.V();
+	}
+	if (flushWaiting && !sending) {
+	    flushWaiting = false;
+	    writeDrained.V();
+	}
     }
 
     private boolean charAvailable = false;
@@ -102,7 +185,19 @@ public class SynchConsole {
     private Lock readLock = new Lock();
     private Lock writeLock = new Lock();
     private Semaphore readWait = new Semaphore(0);
-    private Semaphore writeWait = new Semaphore(0);
+
+    private byte[] writeBuffer = new byte[writeBufferSize];
+    /** The index in <tt>writeBuffer</tt> of the next byte to send. */
+    private int writeFirst = 0;
+    /** The number of bytes in <tt>writeBuffer</tt> waiting to be sent. */
+    private int writeCount = 0;
+    /** <tt>true</tt> while the console is sending a byte. */
+    private boolean sending = false;
+    private boolean writerWaiting = false, flushWaiting = false;
+    private Semaphore writeSpace = new Semaphore(0);
+    private Semaphore writeDrained = new Semaphore(0);
+
+    private static final int writeBufferSize = 256;
 
     private class File extends OpenFile {
 	File(boolean canRead, boolean canWrite) {
@@ -136,9 +231,7 @@ public class SynchConsole {
 	    if (!canWrite)
 		return 0;
 	    
-	    for (int i=0; i<length; i++)
-		SynchConsole.this.writeByte(buf[offset+i]);
-	    
+	    SynchConsole.this.writeBytes(buf, offset, length);
 	    return length;
 	}
 
@@ -27,6 +27,7 @@ public class UserKernel extends ThreadedKernel {
 		super.initialize(args);
 
 		console = new SynchConsole(Machine.console());
+		openFiles = new OpenFileTable(fileSystem);
 
 		int numPhysPages = Machine.processor().getNumPhysPages();
 		for (int i = 0; i < numPhysPages; ++i) {
@@ -55,6 +56,7 @@ public class UserKernel extends ThreadedKernel {
 	}
 	while (c != 'q');
 
+	console.flush();
 	System.out.println("");
     }
 
@@ -74,6 +76,18 @@ public class UserKernel extends ThreadedKernel {
     	Machine.interrupt().restore(interruptStatus);
 	}
 
+    /**
+     * Return the number of physical pages on the free list.
+     *
+     * @return	the number of free pages.
+     */
+	public static int getNumFreePages() {
+    	boolean interruptStatus = Machine.interrupt().disable();
+    	int numFreePages = freePages.size();
+    	Machine.interrupt().restore(interruptStatus);
+    	return numFreePages;
+	}
+
     /**
      * Returns the current process.
      *
@@ -129,12 +143,16 @@ public class UserKernel extends ThreadedKernel {
      * Terminate this kernel. Never returns.
      */
     public void terminate() {
+	console.flush();
 	super.terminate();
     }
 
     /** Globally accessible reference to the synchronized console. */
     public static SynchConsole console;
 
+    /** The files user processes have open. */
+    public static OpenFileTable openFiles;
+
     // dummy variables to make javac smarter
     private static Coff dummy1 = null;
 }
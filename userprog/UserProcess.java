@@ -6,8 +6,8 @@ import nachos.userprog.*;
 
 import java.io.EOFException;
 import java.io.FileDescriptor;
-import java.util.ArrayList;
-import java.util.Hashtable;
+import java.util.BitSet;
+import java.util.HashMap;
 import java.util.LinkedList;
 
 /**
@@ -26,7 +26,7 @@ public class UserProcess {
 
 	private static final int ROOT = 0;
 	private static int processCount = 0;
-	private static Hashtable<Integer, UserProcess> userProcessHashtable = new Hashtable<>();
+	private static HashMap<Integer, UserProcess> userProcessHashtable = new HashMap<>();
 
 	private int pid;
 	private int ppid;
@@ -35,10 +35,16 @@ public class UserProcess {
 	private UThread thread;
 
 	private static final int MAXSTRLEN = 256;
-	private static final int MAXFD = 16;
 	private static final int STDIN = 0;
 	private static final int STDOUT = 1;
-	private SimpleFileDescriptor simpleFileDescriptors[] = new SimpleFileDescriptor[MAXFD];
+
+	/** The most file descriptors a process may have open, from
+	 * <tt>UserProcess.maxFiles</tt>. */
+	private int maxFiles;
+	/** The open files by descriptor; grows as needed, up to maxFiles. */
+	private SimpleFileDescriptor simpleFileDescriptors[] = new SimpleFileDescriptor[4];
+	/** The descriptors in use. The lowest clear bit is the next to hand out. */
+	private BitSet usedFileDescriptors = new BitSet();
 
 
     /**
@@ -46,10 +52,10 @@ public class UserProcess {
      */
     public UserProcess() {
 
-    	Machine.interrupt().disable();
+    	boolean intStatus = Machine.interrupt().disable();
     	pid = processCount++;
-    	Machine.interrupt().enable();
     	userProcessHashtable.put(pid, this);
+    	Machine.interrupt().restore(intStatus);
 
 
 		int numPhysPages = Machine.processor().getNumPhysPages();
@@ -57,12 +63,11 @@ public class UserProcess {
 		for (int i=0; i<numPhysPages; i++)
 			pageTable[i] = new TranslationEntry(i,i, true,false,false,false);
 
-		for (int i = 0; i < MAXFD; ++i) {
-			simpleFileDescriptors[i] = new SimpleFileDescriptor();
-		}
+		maxFiles = Config.getInteger("UserProcess.maxFiles", 16);
+		Lib.assertTrue(maxFiles >= 2);
 
-		simpleFileDescriptors[STDIN].file = UserKernel.console.openForReading();
-		simpleFileDescriptors[STDOUT].file = UserKernel.console.openForWriting();
+		addFileDescriptor(null, UserKernel.console.openForReading());
+		addFileDescriptor(null, UserKernel.console.openForWriting());
 
     }
     
@@ -77,6 +82,28 @@ public class UserProcess {
 	return (UserProcess)Lib.constructObject(Machine.getProcessClassName());
     }
 
+    /**
+     * Return this process's ID, which no other process shares.
+     *
+     * @return	the process ID.
+     */
+    public int getProcessID() {
+	return pid;
+    }
+
+    /**
+     * Forget a process that was never executed, such as one built by a self
+     * test, and give back its process ID if no process has been created
+     * since. The first process run must still get the root's ID.
+     */
+    protected void discard() {
+	boolean intStatus = Machine.interrupt().disable();
+	userProcessHashtable.remove(pid);
+	if (pid == processCount-1)
+	    processCount--;
+	Machine.interrupt().restore(intStatus);
+    }
+
     /**
      * Execute the specified program with the specified arguments. Attempts to
      * load the program, and then forks a thread to run it.
@@ -128,9 +155,11 @@ public class UserProcess {
     public String readVirtualMemoryString(int vaddr, int maxLength) {
 	Lib.assertTrue(maxLength >= 0);
 
-	byte[] bytes = new byte[maxLength+1];
+	// short strings, such as file names, are copied through transferBuffer
+	byte[] bytes = (maxLength < transferBuffer.length) ?
+	    transferBuffer : new byte[maxLength+1];
 
-	int bytesRead = readVirtualMemory(vaddr, bytes);
+	int bytesRead = readVirtualMemory(vaddr, bytes, 0, maxLength+1);
 
 	for (int length=0; length<bytesRead; length++) {
 	    if (bytes[length] == 0)
@@ -171,35 +200,19 @@ public class UserProcess {
 		Lib.assertTrue(offset >= 0 && length >= 0 && offset+length <= data.length);
 
 		byte[] memory = Machine.processor().getMemory();
-		int vpn = Machine.processor().pageFromAddress(vaddr);
-		int addrOffset = Machine.processor().offsetFromAddress(vaddr);
-
-		// for now, just assume that virtual addresses equal physical addresses
-		/*if (vaddr < 0 || vaddr >= memory.length)
-			return 0;
-		int amount = Math.min(length, memory.length-vaddr);
-		System.arraycopy(memory, vaddr, data, offset, amount);*/
-
-		if (vpn >= numPages) {
-			return -1;
-		}
 
-		TranslationEntry entry = pageTable[vpn];
-		if (entry == null)
-			return 0;
-		if (entry.valid == false)
-			return -1;
-
-		entry.used = true;
+		int amount = 0;
+		while (amount < length) {
+			int run = translateRun(vaddr+amount, length-amount, false);
+			if (run == 0)
+				break;
 
-		if (entry.ppn < 0 || entry.ppn >= Machine.processor().getNumPhysPages()) {
-			return 0;
+			System.arraycopy(memory, physicalAddress(vaddr+amount),
+					 data, offset+amount, run);
+			endTransfer();
+			amount += run;
 		}
 
-		int paddr = entry.ppn * pageSize + addrOffset;
-		int amount = Math.min(length, memory.length - paddr);
-		System.arraycopy(memory, paddr, data, offset, amount);
-
 		return amount;
     }
 
@@ -235,39 +248,96 @@ public class UserProcess {
 		Lib.assertTrue(offset >= 0 && length >= 0 && offset+length <= data.length);
 
 		byte[] memory = Machine.processor().getMemory();
-		int vpn = Machine.processor().pageFromAddress(vaddr);
-		int addrOffset = Machine.processor().offsetFromAddress(vaddr);
-
-		// for now, just assume that virtual addresses equal physical addresses
-		/*if (vaddr < 0 || vaddr >= memory.length)
-			return 0;
 
-		int amount = Math.min(length, memory.length-vaddr);
-		System.arraycopy(data, offset, memory, vaddr, amount);*/
+		int amount = 0;
+		while (amount < length) {
+			int run = translateRun(vaddr+amount, length-amount, true);
+			if (run == 0)
+				break;
 
-		if (vpn >= numPages) {
-			return -1;
+			System.arraycopy(data, offset+amount,
+					 memory, physicalAddress(vaddr+amount), run);
+			endTransfer();
+			amount += run;
 		}
 
-		TranslationEntry entry = pageTable[vpn];
+		return amount;
+    }
+
+    /**
+     * Called once the memory found by the last call to
+     * <tt>translateRun()</tt> has been copied, so that a subclass can let go
+     * of anything it held on to for the copy. The default does nothing.
+     */
+    protected void endTransfer() {
+    }
 
-		if (entry == null)
+    /**
+     * Find how much of the virtual memory starting at <tt>vaddr</tt> lies in
+     * physically contiguous pages that can be accessed, up to
+     * <tt>length</tt> bytes. Every page in the run is validated, and has its
+     * used bit, and its dirty bit if <tt>write</tt> is set, updated once.
+     *
+     * @param	vaddr	the first byte of virtual memory in the run.
+     * @param	length	the maximum length of the run.
+     * @param	write	<tt>true</tt> if the run will be written.
+     * @return	the number of bytes in the run, or zero if the page containing
+     *		<tt>vaddr</tt> cannot be accessed.
+     */
+    protected int translateRun(int vaddr, int length, boolean write) {
+		if (vaddr < 0 || length <= 0)
 			return 0;
-		if (entry.valid == false || entry.readOnly)
-			return -1;
 
-		entry.used = true;
-		entry.dirty = true;
+		int vpn = Processor.pageFromAddress(vaddr);
+		int firstOffset = Processor.offsetFromAddress(vaddr);
+		int lastVPN = Processor.pageFromAddress(vaddr + (length-1));
 
-		if (entry.ppn < 0 || entry.ppn >= Machine.processor().getNumPhysPages()) {
-			return 0;
+		int expectedPPN = -1;
+		int run = 0;
+		for (; vpn <= lastVPN; vpn++) {
+			TranslationEntry entry = accessiblePage(vpn, write);
+			if (entry == null ||
+			    (expectedPPN != -1 && entry.ppn != expectedPPN))
+				break;
+
+			entry.used = true;
+			if (write)
+				entry.dirty = true;
+
+			expectedPPN = entry.ppn + 1;
+			run += pageSize;
 		}
 
-		int paddr = entry.ppn * pageSize + addrOffset;
-		int amount = Math.min(length, memory.length - paddr);
-		System.arraycopy(data, offset, memory, vaddr, amount);
+		if (run == 0)
+			return 0;
+
+		return Math.min(run - firstOffset, length);
+    }
 
-		return amount;
+    /**
+     * Return the page table entry for the specified virtual page if it can
+     * be accessed, or <tt>null</tt> if not.
+     */
+    private TranslationEntry accessiblePage(int vpn, boolean write) {
+		if (pageTable == null || vpn < 0 || vpn >= numPages)
+			return null;
+
+		TranslationEntry entry = pageTable[vpn];
+		if (entry == null || !entry.valid || (write && entry.readOnly))
+			return null;
+		if (entry.ppn < 0 || entry.ppn >= Machine.processor().getNumPhysPages())
+			return null;
+
+		return entry;
+    }
+
+    /**
+     * Return the physical address of a virtual address that
+     * <tt>translateRun()</tt> has found to be accessible.
+     */
+    private int physicalAddress(int vaddr) {
+		int vpn = Processor.pageFromAddress(vaddr);
+		return pageTable[vpn].ppn*pageSize + Processor.offsetFromAddress(vaddr);
     }
 
     /**
@@ -297,6 +367,7 @@ public class UserProcess {
 			Lib.debug(dbgProcess, "\tcoff load failed");
 			return false;
 		}
+		executableName = name;
 
 		// make sure the sections are contiguous and start at page 0
 		numPages = 0;
@@ -441,13 +512,16 @@ public class UserProcess {
 
 
 
+    /**
+     * An open file descriptor. Files opened by name hold a reference in
+     * <tt>UserKernel.openFiles</tt>; the console streams have no name.
+     */
     private class SimpleFileDescriptor {
 
-    	private String filename = "";
-    	private OpenFile file = null;
-    	private boolean toRemove = false;
-
-    	public SimpleFileDescriptor() {}
+    	private String filename;
+    	private OpenFile file;
+    	/** Whether the file has been mapped into memory by mmap(). */
+    	private boolean mapped = false;
 
     	public SimpleFileDescriptor(String filename, OpenFile file) {
     		this.filename = filename;
@@ -455,21 +529,66 @@ public class UserProcess {
 		}
 	}
 
-	private int findEmptyFileDescriptor() {
-    	for (int i = 0; i < MAXFD; ++i) {
-    		if (simpleFileDescriptors[i].file == null)
-    			return i;
+	/**
+	 * Give an open file the lowest free descriptor, growing the table if
+	 * needed. Returns -1 if the process already has maxFiles open.
+	 */
+	private int addFileDescriptor(String filename, OpenFile file) {
+		int index = usedFileDescriptors.nextClearBit(0);
+		if (index >= maxFiles)
+			return -1;
+
+		if (index >= simpleFileDescriptors.length) {
+			SimpleFileDescriptor[] grown = new SimpleFileDescriptor[
+				Math.min(2*simpleFileDescriptors.length, maxFiles)];
+			System.arraycopy(simpleFileDescriptors, 0, grown, 0,
+					 simpleFileDescriptors.length);
+			simpleFileDescriptors = grown;
 		}
-		return -1;
+
+		simpleFileDescriptors[index] = new SimpleFileDescriptor(filename, file);
+		usedFileDescriptors.set(index);
+		return index;
 	}
 
-	private int findFileDescriptorByName(String filename) {
-    	for (int i = 0; i < MAXFD; ++i) {
-    		if (simpleFileDescriptors[i].filename == filename) {
-    			return i;
-			}
-		}
-		return -1;
+	/**
+	 * Return the open file descriptor at index, or null if there is none.
+	 */
+	private SimpleFileDescriptor getFileDescriptor(int index) {
+		if (index < 0 || index >= simpleFileDescriptors.length)
+			return null;
+		return simpleFileDescriptors[index];
+	}
+
+	/**
+	 * Return the file open at a descriptor, so that a subclass can map it
+	 * into memory. Returns null if there is no file open there, if it is
+	 * the console, or if it is already mapped.
+	 */
+	protected OpenFile getMappableFile(int index) {
+		SimpleFileDescriptor fd = getFileDescriptor(index);
+		if (fd == null || fd.filename == null || fd.mapped)
+			return null;
+		return fd.file;
+	}
+
+	/**
+	 * Record that the file at a descriptor has been mapped into memory.
+	 * read() and write() on the descriptor fail from now on, and
+	 * unmapFile() is called when it is closed.
+	 */
+	protected void setMapped(int index) {
+		getFileDescriptor(index).mapped = true;
+	}
+
+	/**
+	 * Called when a file descriptor that was mapped into memory is closed,
+	 * before its file is. The subclass that mapped it should write back
+	 * what has changed and remove the mapping.
+	 *
+	 * @param	file	the file that was mapped.
+	 */
+	protected void unmapFile(OpenFile file) {
 	}
 
 	private static UserProcess findProcessByID(int id) {
@@ -482,9 +601,11 @@ public class UserProcess {
      */
     private int handleHalt() {
 
-	Machine.halt();
+	// let the kernel flush the console and clean up, as it does when the
+	// last process exits
+	Kernel.kernel.terminate();
 	
-	Lib.assertNotReached("Machine.halt() did not halt machine!");
+	Lib.assertNotReached("Kernel.terminate() did not halt machine!");
 	return 0;
     }
 
@@ -499,19 +620,7 @@ public class UserProcess {
 			return -1;
 		}
 
-		OpenFile returnValue = UserKernel.fileSystem.open(filename, true);
-
-		if (returnValue == null) {
-			return -1;
-		}
-
-		int index = findEmptyFileDescriptor();
-		if (index == -1) {
-			return -1;
-		}
-		simpleFileDescriptors[index].filename = filename;
-		simpleFileDescriptors[index].file = returnValue;
-		return index;
+		return openFile(filename, true);
 	}
 
 	/**
@@ -525,19 +634,22 @@ public class UserProcess {
 			return -1;
 		}
 
-		OpenFile returnValue = UserKernel.fileSystem.open(filename, false);
+		return openFile(filename, false);
+	}
 
-		if (returnValue == null) {
+	/**
+	 * Open a file through the kernel's open-file table and give it a
+	 * descriptor, for create(..) and open(..)
+	 */
+	private int openFile(String filename, boolean create) {
+		if (usedFileDescriptors.nextClearBit(0) >= maxFiles)
 			return -1;
-		}
 
-		int index = findEmptyFileDescriptor();
-		if (index == -1) {
+		OpenFile file = UserKernel.openFiles.open(filename, create);
+		if (file == null)
 			return -1;
-		}
-		simpleFileDescriptors[index].filename = filename;
-		simpleFileDescriptors[index].file = returnValue;
-		return index;
+
+		return addFileDescriptor(filename, file);
 	}
 
 	/**
@@ -547,22 +659,14 @@ public class UserProcess {
 	 * write to vaddr
 	 */
 	private int handleRead(int index, int vaddr, int bufferSize) {
-		if  (index < 0 || index >= MAXFD || bufferSize < 0)
+		if (bufferSize < 0 || vaddr < 0)
 			return -1;
-		if (vaddr < 0) return -1;
 
-		SimpleFileDescriptor fd = simpleFileDescriptors[index];
-		if (fd.file == null)
+		SimpleFileDescriptor fd = getFileDescriptor(index);
+		if (fd == null || fd.mapped)
 			return -1;
 
-		byte[] buffer = new byte[bufferSize];
-		int readSize = fd.file.read(buffer, 0, bufferSize);
-
-		if (readSize <= 0)
-			return 0;
-
-		int writeSize = writeVirtualMemory(vaddr, buffer, 0, readSize);
-		return writeSize;
+		return transferFile(fd.file, vaddr, bufferSize, true);
 	}
 
 	/**
@@ -572,47 +676,112 @@ public class UserProcess {
 	 * source is vaddr
 	 */
 	private int handleWrite(int index, int vaddr, int bufferSize) {
-		if (index < 0 || index >= MAXFD || bufferSize < 0)
+		if (bufferSize < 0)
+			return -1;
+
+		SimpleFileDescriptor fd = getFileDescriptor(index);
+		if (fd == null || fd.mapped)
 			return -1;
 
-		SimpleFileDescriptor fd = simpleFileDescriptors[index];
-		if (fd.file == null)
+		return transferFile(fd.file, vaddr, bufferSize, false);
+	}
+
+	/**
+	 * Handle the readv(..) and writev(..) system calls
+	 * read iovcnt iovecs, each a buffer address and a size, from iovAddr
+	 * move each buffer to or from the file at index, in order, in one trap
+	 * stop early at a short read or write, like read(..) and write(..)
+	 */
+	private int handleVectored(int index, int iovAddr, int iovcnt,
+				   boolean read) {
+		if (iovcnt < 0 || iovcnt > maxIovecs)
 			return -1;
 
-		byte[] buffer = new byte[bufferSize];
-		int readSize = readVirtualMemory(vaddr, buffer);
-		if (readSize == -1)
+		SimpleFileDescriptor fd = getFileDescriptor(index);
+		if (fd == null || fd.mapped)
 			return -1;
 
-		int returnValue = fd.file.write(buffer, 0, readSize);
-		if (returnValue == -1)
+		int iovSize = iovcnt * iovecSize;
+		if (readVirtualMemory(iovAddr, transferBuffer, 0, iovSize) != iovSize)
 			return -1;
 
-		return returnValue;
+		int total = 0;
+		for (int i = 0; i < iovcnt; ++i) {
+			int base = Lib.bytesToInt(transferBuffer, i*iovecSize);
+			int length = Lib.bytesToInt(transferBuffer, i*iovecSize + 4);
+			if (length < 0)
+				return (total == 0) ? -1 : total;
+
+			int amount = transferFile(fd.file, base, length, read);
+			if (amount == -1)
+				return (total == 0) ? -1 : total;
+
+			total += amount;
+			if (amount < length)
+				break;
+		}
+
+		return total;
+	}
+
+	/**
+	 * Move up to count bytes between an open file and this process's memory
+	 * at vaddr, in chunks of at most maxTransfer bytes that each lie in
+	 * physically contiguous pages. The file reads into or writes out of main
+	 * memory directly, so this takes constant memory however large count is.
+	 * Stops at the first page that cannot be accessed, or at a short read or
+	 * write.
+	 *
+	 * @return	the number of bytes moved, or -1 if none could be because
+	 *		vaddr cannot be accessed or the file failed.
+	 */
+	private int transferFile(OpenFile file, int vaddr, int count,
+				 boolean toMemory) {
+		byte[] memory = Machine.processor().getMemory();
+
+		int total = 0;
+		while (total < count) {
+			int chunk = translateRun(vaddr+total,
+						 Math.min(count-total, maxTransfer), toMemory);
+			if (chunk == 0)
+				return (total == 0) ? -1 : total;
+
+			int paddr = physicalAddress(vaddr+total);
+			int amount = toMemory ? file.read(memory, paddr, chunk)
+					      : file.write(memory, paddr, chunk);
+			endTransfer();
+			if (amount == -1)
+				return (total == 0) ? -1 : total;
+
+			total += amount;
+			if (amount < chunk)
+				break;
+		}
+
+		return total;
 	}
 
 	/**
 	 * Handle the close(..) system call
 	 */
 	private int handleClose(int a0) {
-		if (a0 < 0 || a0 >= MAXFD)
+		SimpleFileDescriptor fd = getFileDescriptor(a0);
+		if (fd == null)
 			return -1;
 
-		SimpleFileDescriptor fd = simpleFileDescriptors[a0];
-		if (fd.file != null)
-			fd.file.close();
-		fd.file = null;
+		simpleFileDescriptors[a0] = null;
+		usedFileDescriptors.clear(a0);
 
-		boolean returnValue = true;
+		if (fd.mapped)
+			unmapFile(fd.file);
 
-		if (fd.toRemove == true) {
-			returnValue = UserKernel.fileSystem.remove(fd.filename);
-			fd.toRemove = false;
+		if (fd.filename == null) {
+			fd.file.close();
+			return 0;
 		}
 
-		fd.filename = "";
-
-		if (returnValue == false)
+		// removes the file too if it was unlinked and this was the last use
+		if (UserKernel.openFiles.close(fd.filename, fd.file) == false)
 			return -1;
 		return 0;
 	}
@@ -622,19 +791,11 @@ public class UserProcess {
 	 */
 	private int handleUnlink(int a0) {
 		String filename = readVirtualMemoryString(a0, MAXSTRLEN);
+		if (filename == null)
+			return -1;
 
-		boolean returnValue = true;
-
-		int index = findFileDescriptorByName(filename);
-		if (index == -1) {
-			returnValue = UserKernel.fileSystem.remove(filename);
-		}
-		else {
-			handleClose(a0);
-			returnValue = UserKernel.fileSystem.remove(filename);
-		}
-
-		if (returnValue == false)
+		// if the file is still open anywhere, it goes when it is closed
+		if (UserKernel.openFiles.unlink(filename) == false)
 			return -1;
 		return 0;
 	}
@@ -643,9 +804,9 @@ public class UserProcess {
 	 * Handle the exit(..) system call
 	 */
 	private void handleExit(int exitStatus) {
-		for (int i = 0; i < MAXFD; ++i) {
-			if (simpleFileDescriptors[i].file != null)
-				handleClose(i);
+		for (int i = usedFileDescriptors.nextSetBit(0); i >= 0;
+		     i = usedFileDescriptors.nextSetBit(i+1)) {
+			handleClose(i);
 		}
 
 		for (Integer i : childProcesses) {
@@ -729,7 +890,7 @@ public class UserProcess {
 		return -1;
 	}
 
-	private static final int
+	protected static final int
         syscallHalt = 0,
 	syscallExit = 1,
 	syscallExec = 2,
@@ -739,7 +900,9 @@ public class UserProcess {
 	syscallRead = 6,
 	syscallWrite = 7,
 	syscallClose = 8,
-	syscallUnlink = 9;
+	syscallUnlink = 9,
+	syscallReadv = 13,
+	syscallWritev = 14;
 
     /**
      * Handle a syscall exception. Called by <tt>handleException()</tt>. The
@@ -760,6 +923,10 @@ public class UserProcess {
      *								</tt></td></tr>
      * <tr><td>8</td><td><tt>int  close(int fd);</tt></td></tr>
      * <tr><td>9</td><td><tt>int  unlink(char *name);</tt></td></tr>
+     * <tr><td>13</td><td><tt>int  readv(int fd, struct iovec *iov,
+     *							int iovcnt);</tt></td></tr>
+     * <tr><td>14</td><td><tt>int  writev(int fd, struct iovec *iov,
+     *							int iovcnt);</tt></td></tr>
      * </table>
      * 
      * @param	syscall	the syscall number.
@@ -781,6 +948,10 @@ public class UserProcess {
 			return handleWrite(a0, a1, a2);
 		case syscallRead:
 			return handleRead(a0, a1, a2);
+		case syscallWritev:
+			return handleVectored(a0, a1, a2, false);
+		case syscallReadv:
+			return handleVectored(a0, a1, a2, true);
 		case syscallClose:
 			return handleClose(a0);
 		case syscallUnlink:
@@ -832,6 +1003,8 @@ public class UserProcess {
 
     /** The program being run by this process. */
     protected Coff coff;
+    /** The name of the file <tt>coff</tt> was loaded from. */
+    protected String executableName;
 
     /** This process's page table. */
     protected TranslationEntry[] pageTable;
@@ -846,4 +1019,13 @@ public class UserProcess {
 	
     private static final int pageSize = Processor.pageSize;
     private static final char dbgProcess = 'a';
+
+    /** Scratch space for copying short strings out of user memory. */
+    private byte[] transferBuffer = new byte[pageSize];
+    /** The most bytes moved by one call to an <tt>OpenFile</tt>. */
+    private static final int maxTransfer = 4*pageSize;
+    /** The size of a <tt>struct iovec</tt>: a buffer address and a size. */
+    private static final int iovecSize = 8;
+    /** The most iovecs passed to <tt>readv()</tt> or <tt>writev()</tt>. */
+    private static final int maxIovecs = pageSize / iovecSize;
 }
@@ -0,0 +1,31 @@
+package nachos.vm;
+
+import nachos.machine.*;
+
+/**
+ * The clock algorithm. A hand sweeps around the frames; a frame whose page
+ * has been used since the hand last passed loses its used bit and is passed
+ * over, and the first frame whose page has not is the victim.
+ */
+public class ClockPolicy extends ReplacementPolicy {
+    /**
+     * Allocate a new clock policy.
+     */
+    public ClockPolicy() {
+    }
+
+    public int findVictim() {
+	// after one full turn every used bit is clear, so two turns suffice
+	for (int i=0; i<2*numFrames; i++) {
+	    int ppn = hand;
+	    hand = (hand+1) % numFrames;
+
+	    if (isEvictable(ppn) && !testAndClearUsed(ppn))
+		return ppn;
+	}
+
+	return -1;
+    }
+
+    private int hand = 0;
+}
@@ -0,0 +1,211 @@
+package nachos.vm;
+
+import nachos.machine.*;
+
+import java.util.HashMap;
+import java.util.Random;
+
+/**
+ * An inverted page table: a map from the (process ID, virtual page) pairs of
+ * resident pages to the physical frames that hold them. There is usually one
+ * entry per frame, but a frame shared by several processes has one for each,
+ * so the table doubles in size when it is half full.
+ *
+ * <p>
+ * The map is an open-addressed hash table of primitive keys and values with
+ * linear probing. A pair is packed into one <tt>long</tt> key, and removal
+ * shifts later entries of the probe sequence back instead of leaving
+ * tombstones, so lookups stay short however many pages come and go.
+ */
+public class InvertedPageTable {
+    /**
+     * Allocate a new, empty inverted page table.
+     *
+     * @param	numFrames	the number of physical frames.
+     */
+    public InvertedPageTable(int numFrames) {
+	Lib.assertTrue(numFrames > 0);
+
+	// keep the load factor at most one half
+	int capacity = 1;
+	while (capacity < 2*numFrames)
+	    capacity *= 2;
+
+	allocate(capacity);
+    }
+
+    private void allocate(int capacity) {
+	keys = new long[capacity];
+	frames = new int[capacity];
+	mask = capacity-1;
+
+	for (int i=0; i<capacity; i++)
+	    keys[i] = empty;
+    }
+
+    /**
+     * Return the frame holding a page.
+     *
+     * @param	pid	the ID of the process the page belongs to.
+     * @param	vpn	the virtual page number.
+     * @return	the frame holding the page, or -1 if it is not resident.
+     */
+    public int lookup(int pid, int vpn) {
+	long key = makeKey(pid, vpn);
+
+	for (int i=hash(key); keys[i] != empty; i=(i+1)&mask) {
+	    if (keys[i] == key)
+		return frames[i];
+	}
+
+	return -1;
+    }
+
+    /**
+     * Record that a frame holds a page, which must not already be resident.
+     *
+     * @param	pid	the ID of the process the page belongs to.
+     * @param	vpn	the virtual page number.
+     * @param	ppn	the frame holding the page.
+     */
+    public void insert(int pid, int vpn, int ppn) {
+	Lib.assertTrue(ppn >= 0);
+
+	if (2*(size+1) > keys.length)
+	    grow();
+
+	long key = makeKey(pid, vpn);
+
+	int i = hash(key);
+	while (keys[i] != empty) {
+	    Lib.assertTrue(keys[i] != key);
+	    i = (i+1)&mask;
+	}
+
+	keys[i] = key;
+	frames[i] = ppn;
+	size++;
+    }
+
+    /**
+     * Forget the frame holding a page.
+     *
+     * @param	pid	the ID of the process the page belongs to.
+     * @param	vpn	the virtual page number.
+     * @return	the frame that held the page, or -1 if it was not resident.
+     */
+    public int remove(int pid, int vpn) {
+	long key = makeKey(pid, vpn);
+
+	int i = hash(key);
+	while (keys[i] != key) {
+	    if (keys[i] == empty)
+		return -1;
+	    i = (i+1)&mask;
+	}
+
+	int ppn = frames[i];
+	size--;
+
+	/* Close the hole: move back any later entry in this run whose home
+	 * slot is not between the hole and itself, or it could no longer be
+	 * found.
+	 */
+	int hole = i;
+	for (int j=(i+1)&mask; keys[j] != empty; j=(j+1)&mask) {
+	    int home = hash(keys[j]);
+	    if (((j - home) & mask) >= ((j - hole) & mask)) {
+		keys[hole] = keys[j];
+		frames[hole] = frames[j];
+		hole = j;
+	    }
+	}
+	keys[hole] = empty;
+
+	return ppn;
+    }
+
+    /**
+     * Double the capacity of the table, rehashing every entry.
+     */
+    private void grow() {
+	long[] oldKeys = keys;
+	int[] oldFrames = frames;
+
+	allocate(2*oldKeys.length);
+
+	for (int j=0; j<oldKeys.length; j++) {
+	    if (oldKeys[j] == empty)
+		continue;
+
+	    int i = hash(oldKeys[j]);
+	    while (keys[i] != empty)
+		i = (i+1)&mask;
+
+	    keys[i] = oldKeys[j];
+	    frames[i] = oldFrames[j];
+	}
+    }
+
+    /**
+     * Return the number of resident pages in the table.
+     */
+    public int size() {
+	return size;
+    }
+
+    private static long makeKey(int pid, int vpn) {
+	Lib.assertTrue(pid >= 0 && vpn >= 0);
+	return ((long) pid << 32) | vpn;
+    }
+
+    private int hash(long key) {
+	// Fibonacci hashing spreads consecutive pages of a process apart
+	long h = key * 0x9E3779B97F4A7C15L;
+	return (int) (h ^ (h >>> 32)) & mask;
+    }
+
+    /**
+     * Tests whether this module is working, by checking a run of random
+     * inserts and removes against a <tt>HashMap</tt>. The table starts out
+     * too small, so it has to grow along the way.
+     */
+    public static void selfTest() {
+	final int numFrames = 16;
+	InvertedPageTable table = new InvertedPageTable(4);
+	HashMap<Long, Integer> expected = new HashMap<Long, Integer>();
+	Random random = new Random(0);
+
+	for (int n=0; n<10000; n++) {
+	    int pid = random.nextInt(4);
+	    int vpn = random.nextInt(32);
+	    long key = makeKey(pid, vpn);
+
+	    if (expected.containsKey(key)) {
+		Lib.assertTrue(table.remove(pid, vpn) == expected.remove(key));
+	    }
+	    else if (expected.size() < numFrames) {
+		int ppn = random.nextInt(numFrames);
+		table.insert(pid, vpn, ppn);
+		expected.put(key, ppn);
+	    }
+
+	    Lib.assertTrue(table.size() == expected.size());
+	    for (int p=0; p<4; p++) {
+		for (int v=0; v<32; v++) {
+		    Integer ppn = expected.get(makeKey(p, v));
+		    Lib.assertTrue(table.lookup(p, v) ==
+				   (ppn == null ? -1 : ppn.intValue()));
+		}
+	    }
+	}
+    }
+
+    /** Marks an unused slot; no real key has a negative process ID. */
+    private static final long empty = -1L;
+
+    private long[] keys;
+    private int[] frames;
+    private int mask;
+    private int size = 0;
+}
@@ -0,0 +1,49 @@
+package nachos.vm;
+
+import nachos.machine.*;
+
+/**
+ * Approximate LRU by aging. Each frame has an 8-bit age; whenever a victim
+ * is needed, every age is shifted right and the page's used bit shifted in
+ * at the top, and the page with the lowest age, the one least recently used
+ * over the last eight rounds, is the victim.
+ */
+public class LRUApproxPolicy extends ReplacementPolicy {
+    /**
+     * Allocate a new aging policy.
+     */
+    public LRUApproxPolicy() {
+    }
+
+    public void initialize(int numFrames) {
+	super.initialize(numFrames);
+
+	age = new int[numFrames];
+    }
+
+    public void pageLoaded(int ppn) {
+	age[ppn] = 0;
+    }
+
+    public int findVictim() {
+	int victim = -1;
+
+	// start the search after the last victim, so ties go round robin
+	for (int i=1; i<=numFrames; i++) {
+	    int ppn = (lastVictim + i) % numFrames;
+	    if (!isEvictable(ppn))
+		continue;
+
+	    age[ppn] = (age[ppn] >> 1) | (testAndClearUsed(ppn) ? 0x80 : 0);
+	    if (victim == -1 || age[ppn] < age[victim])
+		victim = ppn;
+	}
+
+	if (victim != -1)
+	    lastVictim = victim;
+	return victim;
+    }
+
+    private int[] age;
+    private int lastVictim = 0;
+}
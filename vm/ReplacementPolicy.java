@@ -0,0 +1,90 @@
+package nachos.vm;
+
+import nachos.machine.*;
+
+/**
+ * A page replacement policy, which chooses the pages the page-out daemon
+ * evicts to keep frames free for pages that have to be brought into memory.
+ * The daemon asks for victims ahead of need, so some frames may be free, or
+ * hold pages that have already been evicted, when it does. The kernel loads
+ * the policy named by <tt>VMKernel.replacementPolicy</tt> in
+ * <tt>nachos.conf</tt>.
+ *
+ * <p>
+ * Policies see frames by physical page number. A frame is evictable if it
+ * holds a page that is not pinned; the used and dirty bits of that page are
+ * up to date with the TLB whenever <tt>findVictim()</tt> is called, and a
+ * policy may clear the used bit to see whether the page is referenced again.
+ */
+public abstract class ReplacementPolicy {
+    /**
+     * Allocate a new replacement policy.
+     */
+    public ReplacementPolicy() {
+    }
+
+    /**
+     * Prepare to manage the specified number of frames. Called once, before
+     * any other method.
+     *
+     * @param	numFrames	the number of physical frames.
+     */
+    public void initialize(int numFrames) {
+	this.numFrames = numFrames;
+    }
+
+    /**
+     * Called after a page has been read into a frame.
+     *
+     * @param	ppn	the frame.
+     */
+    public void pageLoaded(int ppn) {
+    }
+
+    /**
+     * Called after a frame has been freed, either by a process that no
+     * longer needs it, or by evicting the page chosen by
+     * <tt>findVictim()</tt>. The frame is not evictable until a page is
+     * loaded into it again.
+     *
+     * @param	ppn	the frame.
+     */
+    public void frameFreed(int ppn) {
+    }
+
+    /**
+     * Choose a frame to take away from the page it holds. Frames that are
+     * free, or whose pages have already been evicted, are not evictable, and
+     * must be passed over.
+     *
+     * @return	an evictable frame, or -1 if there is none.
+     */
+    public abstract int findVictim();
+
+    /**
+     * Test whether a frame holds a page that may be evicted.
+     */
+    protected boolean isEvictable(int ppn) {
+	return VMKernel.isEvictable(ppn);
+    }
+
+    /**
+     * Return whether the page in an evictable frame has been referenced,
+     * by any process sharing it, since the last call to this method for it,
+     * and clear its used bits.
+     */
+    protected boolean testAndClearUsed(int ppn) {
+	return VMKernel.testAndClearUsed(ppn);
+    }
+
+    /**
+     * Return whether the page in an evictable frame would have to be written
+     * to swap if it were evicted.
+     */
+    protected boolean isDirty(int ppn) {
+	return VMKernel.isDirty(ppn);
+    }
+
+    /** The number of physical frames. */
+    protected int numFrames;
+}
@@ -0,0 +1,43 @@
+package nachos.vm;
+
+import nachos.machine.*;
+
+import java.util.LinkedList;
+
+/**
+ * FIFO replacement with a second chance. Frames are queued in the order
+ * their pages were loaded; the oldest page is the victim, unless it has
+ * been used since it was last considered, in which case it loses its used
+ * bit and goes to the back of the queue.
+ */
+public class SecondChancePolicy extends ReplacementPolicy {
+    /**
+     * Allocate a new second-chance policy.
+     */
+    public SecondChancePolicy() {
+    }
+
+    public void pageLoaded(int ppn) {
+	queue.add(ppn);
+    }
+
+    public void frameFreed(int ppn) {
+	queue.remove((Integer) ppn);
+    }
+
+    public int findVictim() {
+	for (int i=0, n=2*queue.size(); i<n; i++) {
+	    int ppn = queue.removeFirst();
+
+	    if (isEvictable(ppn) && !testAndClearUsed(ppn))
+		return ppn;
+
+	    queue.add(ppn);
+	}
+
+	return -1;
+    }
+
+    /** The frames in use, least recently loaded or passed over first. */
+    private LinkedList<Integer> queue = new LinkedList<Integer>();
+}
@@ -0,0 +1,148 @@
+package nachos.vm;
+
+import nachos.machine.*;
+import nachos.threads.*;
+
+import java.util.BitSet;
+
+/**
+ * The backing store for pages that are not in memory: a file divided into
+ * page-sized slots.
+ *
+ * <p>
+ * Free slots are tracked in a bitmap, and runs of adjacent slots can be
+ * allocated together, so that pages that are paged out together are stored
+ * together. Every access to the file costs a fixed delay however much it
+ * moves, so a batch of pages whose slots are adjacent is written with a
+ * single write.
+ */
+public class SwapManager {
+    /**
+     * Create a swap file, replacing any file of the same name.
+     *
+     * @param	fileSystem	the file system to create it in.
+     * @param	name		the name of the swap file.
+     */
+    public SwapManager(FileSystem fileSystem, String name) {
+	this.fileSystem = fileSystem;
+	this.name = name;
+
+	file = fileSystem.open(name, true);
+	Lib.assertTrue(file != null, "could not open swap file");
+    }
+
+    /**
+     * Allocate a run of adjacent free slots, growing the swap file if there
+     * is no long enough run.
+     *
+     * @param	count	the number of slots.
+     * @return	the first slot of the run.
+     */
+    public int allocate(int count) {
+	Lib.assertTrue(count > 0);
+
+	int first = usedSlots.nextClearBit(0);
+	while (true) {
+	    int end = usedSlots.nextSetBit(first);
+	    if (end == -1 || end - first >= count)
+		break;
+
+	    first = usedSlots.nextClearBit(end);
+	}
+
+	usedSlots.set(first, first+count);
+	return first;
+    }
+
+    /**
+     * Return a slot to the free pool.
+     */
+    public void free(int slot) {
+	Lib.assertTrue(usedSlots.get(slot));
+	usedSlots.clear(slot);
+    }
+
+    /**
+     * Read a page from a slot into a frame.
+     */
+    public void read(int slot, int ppn) {
+	int amount = file.read(slot*pageSize, Machine.processor().getMemory(),
+			       ppn*pageSize, pageSize);
+	Lib.assertTrue(amount == pageSize, "swap read failed");
+
+	numReads++;
+    }
+
+    /**
+     * Write a page from a frame to a slot.
+     */
+    public void write(int slot, int ppn) {
+	int amount = file.write(slot*pageSize, Machine.processor().getMemory(),
+				ppn*pageSize, pageSize);
+	Lib.assertTrue(amount == pageSize, "swap write failed");
+
+	numWrites++;
+	numPagesWritten++;
+    }
+
+    /**
+     * Write a batch of pages, each with one write per run of adjacent
+     * slots. Page <i>i</i> is at offset <tt>i*pageSize</tt> in <i>data</i>
+     * and goes to <tt>slots[i]</tt>.
+     *
+     * @param	slots	the slots to write, in increasing order.
+     * @param	data	the contents of the pages.
+     * @param	count	the number of pages.
+     */
+    public void write(int[] slots, byte[] data, int count) {
+	int first = 0;
+	while (first < count) {
+	    int last = first;
+	    while (last+1 < count && slots[last+1] == slots[last]+1)
+		last++;
+
+	    int length = (last-first+1)*pageSize;
+	    int amount = file.write(slots[first]*pageSize, data,
+				    first*pageSize, length);
+	    Lib.assertTrue(amount == length, "swap write failed");
+
+	    numWrites++;
+	    numPagesWritten += last-first+1;
+	    first = last+1;
+	}
+    }
+
+    /**
+     * Close and remove the swap file.
+     */
+    public void close() {
+	file.close();
+	fileSystem.remove(name);
+    }
+
+    /**
+     * Return a summary of the I/O done on the swap file.
+     */
+    public String getStatistics() {
+	return "swap reads " + numReads + ", swap writes " + numWrites
+	    + " (" + numPagesWritten + " pages)";
+    }
+
+    /**
+     * Zero the counts of I/O done on the swap file.
+     */
+    public void resetStatistics() {
+	numReads = numWrites = numPagesWritten = 0;
+    }
+
+    private FileSystem fileSystem;
+    private String name;
+    private OpenFile file;
+
+    /** The slots in use. */
+    private BitSet usedSlots = new BitSet();
+
+    private int numReads = 0, numWrites = 0, numPagesWritten = 0;
+
+    private static final int pageSize = Processor.pageSize;
+}
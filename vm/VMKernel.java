@@ -5,8 +5,37 @@ import nachos.threads.*;
 import nachos.userprog.*;
 import nachos.vm.*;
 
+import java.util.HashMap;
+import java.util.LinkedList;
+
 /**
  * A kernel that can support multiple demand-paging user processes.
+ *
+ * <p>
+ * The kernel keeps a table of physical frames, recording which page of which
+ * process each one holds, and an inverted page table that finds the frame
+ * holding a page from its process ID and page number. Both take constant
+ * time, however many processes there are. When a process touches a page that
+ * is not in memory, the page is read into a free frame, or, if there is none, into a
+ * frame taken from another page chosen by the replacement policy named by
+ * <tt>VMKernel.replacementPolicy</tt> in <tt>nachos.conf</tt>. Dirty pages
+ * are written to a swap file on the way out.
+ *
+ * <p>
+ * Frames are taken from pages ahead of time by a page-out daemon thread,
+ * which keeps a few frames free, so that a page fault rarely has to wait
+ * for one. The daemon writes dirty pages to swap in batches, with adjacent
+ * pages given adjacent slots so that each batch takes few writes, and it
+ * does not hold <tt>memoryLock</tt> while it writes to swap or to a mapped
+ * file. A private page stays in its frame until the frame is reused, and a
+ * fault on it before then takes it back without any I/O.
+ *
+ * <p>
+ * Pages of an executable's COFF sections are shared by every process running
+ * that executable, through a cache of frames keyed by file, section and page.
+ * A frame stays in the cache while any process has it mapped. Pages of
+ * writable sections are mapped read-only, and a process gets its own copy of
+ * one the first time it writes to it.
  */
 public class VMKernel extends UserKernel {
     /**
@@ -21,13 +50,67 @@ public class VMKernel extends UserKernel {
      */
     public void initialize(String[] args) {
 	super.initialize(args);
+
+	frames = new Frame[Machine.processor().getNumPhysPages()];
+	for (int i=0; i<frames.length; i++)
+	    frames[i] = new Frame();
+	invertedPageTable = new InvertedPageTable(frames.length);
+	reclaimablePages = new InvertedPageTable(frames.length);
+
+	memoryLock = new Lock();
+
+	policy = (ReplacementPolicy) Lib.constructObject(
+	    Config.getString("VMKernel.replacementPolicy",
+			     "nachos.vm.ClockPolicy"));
+	policy.initialize(frames.length);
+
+	swap = new SwapManager(fileSystem,
+			       Config.getString("VMKernel.swapFile", "nachos.swp"));
+
+	// frames kept free cannot hold the pages an instruction is waiting on,
+	// so in a small memory the daemon only frees frames on demand, and it
+	// keeps none free by default when only one could be
+	int maxFree = Math.max(0, frames.length - framesPerInstruction);
+	int defaultLowWaterMark =
+	    (maxFree > 1) ? Math.max(1, frames.length/8) : 0;
+	lowWaterMark = Config.getInteger("VMKernel.lowWaterMark",
+					 defaultLowWaterMark);
+	lowWaterMark = Math.max(0, Math.min(lowWaterMark, maxFree));
+	highWaterMark = Math.max(lowWaterMark,
+				 Math.min(2*lowWaterMark, frames.length/2));
+	highWaterMark = Math.min(highWaterMark, maxFree);
+
+	clusterSize = Config.getInteger("VMKernel.pageOutCluster", 8);
+	Lib.assertTrue(clusterSize >= 1);
+	cluster = new int[clusterSize];
+	clusterEntries = new TranslationEntry[clusterSize];
+	clusterSlots = new int[clusterSize];
+	clusterKeys = new long[clusterSize];
+	clusterData = new byte[clusterSize*pageSize];
+	mappedCluster = new int[clusterSize];
+	mappedEntries = new TranslationEntry[clusterSize];
+
+	pageOutNeeded = new Condition(memoryLock);
+	framesFreed = new Condition(memoryLock);
+	framesUnpinned = new Condition(memoryLock);
+
+	new KThread(new Runnable() {
+		public void run() { pageOutDaemon(); }
+	    }).setName("page-out").fork();
     }
 
     /**
      * Test this kernel.
-     */	
+     */
     public void selfTest() {
 	super.selfTest();
+
+	InvertedPageTable.selfTest();
+	VMProcess.selfTest();
+
+	// the statistics printed at the end are for user programs alone
+	numPageIns = numEvictions = numReclaims = numFrameWaits = 0;
+	swap.resetStatistics();
     }
 
     /**
@@ -36,16 +119,784 @@ public class VMKernel extends UserKernel {
     public void run() {
 	super.run();
     }
-    
+
     /**
      * Terminate this kernel. Never returns.
      */
     public void terminate() {
+	console.flush();
+	System.out.println("Demand paging (" + policy.getClass().getName()
+			   + "): page-ins " + numPageIns
+			   + ", evictions " + numEvictions
+			   + ", " + swap.getStatistics()
+			   + ", reclaimed " + numReclaims
+			   + ", waits for a frame " + numFrameWaits
+			   + ", shared " + numSharedMappings
+			   + ", copied on write " + numCopiesOnWrite);
+
+	// the swap file has to outlast a write in progress
+	memoryLock.acquire();
+	while (writingCluster)
+	    framesFreed.sleep();
+	swap.close();
+
 	super.terminate();
     }
 
+    /**
+     * Make a page of a process resident, reading it into a free frame or
+     * one taken from another page. The caller must hold
+     * <tt>memoryLock</tt>.
+     *
+     * @param	process	the process the page belongs to.
+     * @param	vpn	the page to make resident.
+     * @return	the frame holding the page.
+     */
+    static int pageIn(VMProcess process, int vpn) {
+	Lib.assertTrue(memoryLock.isHeldByCurrentThread());
+
+	int pid = process.getProcessID();
+	int resident = invertedPageTable.lookup(pid, vpn);
+	if (resident != -1)
+	    return resident;
+
+	int reclaimed = reclaimablePages.remove(pid, vpn);
+	if (reclaimed != -1) {
+	    reclaimableFrames.remove((Integer) reclaimed);
+	    frames[reclaimed].reclaimable = false;
+	    mapPage(process, vpn, reclaimed);
+
+	    numReclaims++;
+	    policy.pageLoaded(reclaimed);
+	    return reclaimed;
+	}
+
+	String key = process.getSharedPageKey(vpn);
+	if (key != null && sharedPages.containsKey(key)) {
+	    numSharedMappings++;
+	    return mapSharedPage(process, vpn, sharedPages.get(key));
+	}
+
+	int ppn = allocateFrame();
+
+	// another process may have loaded the page while allocateFrame() waited
+	if (key != null && sharedPages.containsKey(key)) {
+	    addFreePage(ppn);
+	    numSharedMappings++;
+	    return mapSharedPage(process, vpn, sharedPages.get(key));
+	}
+
+	Frame frame = frames[ppn];
+	frame.vpn = vpn;
+	frame.pinCount++;
+
+	SharedPage page = null;
+	if (key != null) {
+	    page = new SharedPage(key, ppn);
+	    frame.shared = page;
+	    sharedPages.put(key, page);
+	}
+	else {
+	    frame.process = process;
+	    frame.entry = process.getPageTableEntry(vpn);
+	}
+
+	process.loadPage(vpn, ppn);
+
+	frame.pinCount--;
+	numPageIns++;
+	policy.pageLoaded(ppn);
+
+	if (page != null)
+	    return mapSharedPage(process, vpn, page);
+
+	mapPage(process, vpn, ppn);
+	return ppn;
+    }
+
+    /**
+     * Give a process its own copy of a page of a writable section that it
+     * has been sharing, so that it can write to it. The caller must hold
+     * <tt>memoryLock</tt>.
+     *
+     * @param	process	the process about to write to the page.
+     * @param	vpn	the page.
+     * @return	the frame holding the process's copy.
+     */
+    static int copyOnWrite(VMProcess process, int vpn) {
+	Lib.assertTrue(memoryLock.isHeldByCurrentThread());
+
+	int sharedPPN = pageIn(process, vpn);
+	Frame sharedFrame = frames[sharedPPN];
+	Lib.assertTrue(sharedFrame.shared != null);
+
+	if (process == currentVMProcess())
+	    process.invalidateTLBEntry(vpn);
+
+	// nobody else is using the page, so the process can just take it
+	if (sharedFrame.shared.processes.size() == 1) {
+	    sharedPages.remove(sharedFrame.shared.key);
+	    sharedFrame.shared = null;
+	    sharedFrame.process = process;
+	    sharedFrame.entry = process.getPageTableEntry(vpn);
+
+	    process.makePagePrivate(vpn);
+	    return sharedPPN;
+	}
+
+	// keep the original in memory until it has been copied
+	sharedFrame.pinCount++;
+	int ppn = allocateFrame();
+	sharedFrame.pinCount--;
+
+	byte[] memory = Machine.processor().getMemory();
+	System.arraycopy(memory, sharedPPN*pageSize, memory, ppn*pageSize,
+			 pageSize);
+
+	unmapSharedPage(process, sharedPPN);
+	process.makePagePrivate(vpn);
+
+	Frame frame = frames[ppn];
+	frame.process = process;
+	frame.vpn = vpn;
+	frame.entry = process.getPageTableEntry(vpn);
+
+	mapPage(process, vpn, ppn);
+
+	numCopiesOnWrite++;
+	policy.pageLoaded(ppn);
+	return ppn;
+    }
+
+    /**
+     * Point a process's page table entry for a page at a frame, and record
+     * the page as resident.
+     */
+    private static void mapPage(VMProcess process, int vpn, int ppn) {
+	invertedPageTable.insert(process.getProcessID(), vpn, ppn);
+
+	TranslationEntry entry = process.getPageTableEntry(vpn);
+	entry.ppn = ppn;
+	entry.valid = true;
+	// the access that faulted the page in counts as a use, so the
+	// page-out daemon does not take it back before the access is retried
+	entry.used = true;
+	entry.dirty = false;
+    }
+
+    /**
+     * Add a process to the processes sharing a cached page.
+     *
+     * @return	the frame holding the page.
+     */
+    private static int mapSharedPage(VMProcess process, int vpn,
+				     SharedPage page) {
+	Lib.assertTrue(frames[page.ppn].vpn == vpn);
+
+	page.processes.add(process);
+	mapPage(process, vpn, page.ppn);
+
+	return page.ppn;
+    }
+
+    /**
+     * Remove a process from the processes sharing a cached page, and free
+     * the frame if it was the last one.
+     */
+    private static void unmapSharedPage(VMProcess process, int ppn) {
+	Frame frame = frames[ppn];
+	SharedPage page = frame.shared;
+
+	invertedPageTable.remove(process.getProcessID(), frame.vpn);
+	process.getPageTableEntry(frame.vpn).valid = false;
+	page.processes.remove(process);
+
+	if (page.processes.isEmpty()) {
+	    Lib.assertTrue(frame.pinCount == 0);
+	    sharedPages.remove(page.key);
+	    frame.shared = null;
+
+	    policy.frameFreed(ppn);
+	    addFreePage(ppn);
+	}
+    }
+
+    /**
+     * Release every frame holding a page of a process, without saving the
+     * pages. The caller must hold <tt>memoryLock</tt>.
+     *
+     * @param	process	the process that is giving up its memory.
+     * @param	numPages	the number of pages in the process.
+     */
+    static void freeFrames(VMProcess process, int numPages) {
+	Lib.assertTrue(memoryLock.isHeldByCurrentThread());
+
+	int pid = process.getProcessID();
+
+	for (int vpn=0; vpn<numPages; vpn++) {
+	    int ppn = invertedPageTable.lookup(pid, vpn);
+	    if (ppn == -1)
+		continue;
+
+	    Frame frame = frames[ppn];
+	    if (frame.shared != null) {
+		unmapSharedPage(process, ppn);
+		continue;
+	    }
+
+	    frame.pinCount = 0;
+	    releaseFrame(ppn);
+	}
+
+	for (int vpn=0; vpn<numPages; vpn++)
+	    forgetReclaimable(pid, vpn);
+
+	// the page-out daemon may be waiting for frames it can take
+	framesUnpinned.wake();
+    }
+
+    /**
+     * Remove a private page from a process's address space, writing it back
+     * first if it is dirty. The caller must hold <tt>memoryLock</tt>, which
+     * is released while the page-out daemon finishes writing the page, if
+     * it is.
+     *
+     * @param	process	the process giving up the page.
+     * @param	vpn	the page.
+     */
+    static void unmapPage(VMProcess process, int vpn) {
+	Lib.assertTrue(memoryLock.isHeldByCurrentThread());
+
+	int ppn;
+	while ((ppn = invertedPageTable.lookup(process.getProcessID(), vpn))
+	       != -1 && frames[ppn].pinCount > 0)
+	    framesFreed.sleep();
+
+	forgetReclaimable(process.getProcessID(), vpn);
+	if (ppn == -1)
+	    return;
+
+	Frame frame = frames[ppn];
+	Lib.assertTrue(frame.shared == null);
+
+	if (process == currentVMProcess())
+	    process.invalidateTLBEntry(vpn);
+	if (frame.entry.dirty)
+	    process.savePage(vpn, ppn);
+
+	releaseFrame(ppn);
+    }
+
+    /**
+     * Free a frame holding a private page, without saving the page.
+     */
+    private static void releaseFrame(int ppn) {
+	Frame frame = frames[ppn];
+	invertedPageTable.remove(frame.process.getProcessID(), frame.vpn);
+
+	frame.entry.valid = false;
+	frame.process = null;
+	frame.entry = null;
+
+	policy.frameFreed(ppn);
+	addFreePage(ppn);
+    }
+
+    /**
+     * If an evicted page of a process is still in its frame, give up on
+     * taking it back and free the frame outright.
+     */
+    private static void forgetReclaimable(int pid, int vpn) {
+	int ppn = reclaimablePages.remove(pid, vpn);
+	if (ppn == -1)
+	    return;
+
+	reclaimableFrames.remove((Integer) ppn);
+	forgetPage(ppn);
+	addFreePage(ppn);
+    }
+
+    /**
+     * Forget the evicted page that a frame still holds.
+     */
+    private static void forgetPage(int ppn) {
+	Frame frame = frames[ppn];
+	frame.reclaimable = false;
+	frame.process = null;
+	frame.entry = null;
+    }
+
+    /**
+     * Keep a frame from being evicted until <tt>unpinFrame()</tt> is
+     * called. The caller must hold <tt>memoryLock</tt>.
+     */
+    static void pinFrame(int ppn) {
+	frames[ppn].pinCount++;
+	numTransferPins++;
+    }
+
+    /**
+     * Undo one call to <tt>pinFrame()</tt>, waking the page-out daemon if
+     * it is waiting for the frame. The caller must hold
+     * <tt>memoryLock</tt>.
+     */
+    static void unpinFrame(int ppn) {
+	Lib.assertTrue(frames[ppn].pinCount > 0);
+	frames[ppn].pinCount--;
+	numTransferPins--;
+
+	if (frames[ppn].pinCount == 0)
+	    framesUnpinned.wake();
+    }
+
+    /**
+     * Return a free frame, waiting for the page-out daemon to free one if
+     * there is none. The daemon is woken whenever free frames run low, so
+     * there usually is one. The caller must hold <tt>memoryLock</tt>, which
+     * is released while it waits.
+     */
+    private static int allocateFrame() {
+	int ppn;
+	while ((ppn = getFreePage()) == -1) {
+	    // failing an empty frame, reuse the one evicted longest ago
+	    if (!reclaimableFrames.isEmpty()) {
+		ppn = reclaimableFrames.removeFirst();
+
+		Frame frame = frames[ppn];
+		reclaimablePages.remove(frame.process.getProcessID(), frame.vpn);
+		forgetPage(ppn);
+		break;
+	    }
+
+	    numFrameWaits++;
+	    numFrameWaiters++;
+	    pageOutNeeded.wake();
+	    framesFreed.sleep();
+	    numFrameWaiters--;
+	}
+
+	if (getNumFreeFrames() < Math.min(lowWaterMark, getMaxFreeFrames()))
+	    pageOutNeeded.wake();
+
+	return ppn;
+    }
+
+    /**
+     * Return the most frames the page-out daemon may keep free, so that,
+     * besides the frames pinned by transfers in progress, there are enough
+     * left for a process to run an instruction.
+     */
+    private static int getMaxFreeFrames() {
+	return Math.max(0, frames.length - numTransferPins
+			- framesPerInstruction);
+    }
+
+    /**
+     * Return the number of frames that can be allocated without evicting
+     * anything: those that are empty, and those whose pages have already
+     * been evicted.
+     */
+    private static int getNumFreeFrames() {
+	return getNumFreePages() + reclaimableFrames.size();
+    }
+
+    /**
+     * The page-out daemon. Whenever fewer than <tt>lowWaterMark</tt> frames
+     * are free, it takes frames from the pages chosen by the replacement
+     * policy until <tt>highWaterMark</tt> are, but it never keeps more free
+     * than <tt>getMaxFreeFrames()</tt> allows. It also frees a frame for
+     * each thread waiting for one.
+     */
+    private static void pageOutDaemon() {
+	memoryLock.acquire();
+
+	while (true) {
+	    int maxFree = getMaxFreeFrames();
+	    int low = Math.max(Math.min(lowWaterMark, maxFree), numFrameWaiters);
+	    if (getNumFreeFrames() >= low) {
+		pageOutNeeded.sleep();
+		continue;
+	    }
+
+	    int high = Math.max(Math.min(highWaterMark, maxFree),
+				numFrameWaiters);
+	    if (!pageOut(high - getNumFreeFrames())) {
+		// every frame is pinned by a transfer in progress
+		framesUnpinned.sleep();
+	    }
+
+	    framesFreed.wakeAll();
+	}
+    }
+
+    /**
+     * Free up to <i>count</i> frames. Clean pages are dropped at once. Up
+     * to <tt>clusterSize</tt> dirty pages are written out, those of mapped
+     * files to their files one at a time, and the rest to swap together.
+     *
+     * @return	<tt>false</tt> if no frame could be taken.
+     */
+    private static boolean pageOut(int count) {
+	int numDirty = 0, numMapped = 0;
+
+	for (int i=0; i<count && numDirty+numMapped<clusterSize; i++) {
+	    int ppn = policy.findVictim();
+	    if (ppn == -1) {
+		if (i == 0)
+		    return false;
+		break;
+	    }
+
+	    Frame frame = frames[ppn];
+	    if (isDirty(ppn)) {
+		// keep it where it is until it has been written
+		frame.pinCount++;
+		if (frame.process.isMapped(frame.vpn)) {
+		    mappedCluster[numMapped] = ppn;
+		    mappedEntries[numMapped++] = frame.entry;
+		}
+		else {
+		    cluster[numDirty++] = ppn;
+		}
+	    }
+	    else {
+		evict(ppn);
+	    }
+	}
+
+	if (numDirty > 0)
+	    writeCluster(numDirty);
+	for (int i=0; i<numMapped; i++)
+	    writeMappedPage(mappedCluster[i], mappedEntries[i]);
+
+	return true;
+    }
+
+    /**
+     * Write the dirty pages in the first <i>count</i> frames of
+     * <tt>cluster</tt> to swap, and free the frames of those that are not
+     * used again while that happens. <tt>memoryLock</tt> is released during
+     * the write, so the pages are copied out first, and are left pinned and
+     * mapped.
+     */
+    private static void writeCluster(int count) {
+	// pages with no slot yet get adjacent slots, in the order of their
+	// processes and page numbers, so neighbouring pages stay neighbours
+	int numNew = 0;
+	for (int i=0; i<count; i++) {
+	    Frame frame = frames[cluster[i]];
+	    clusterKeys[i] = ((long) frame.process.getProcessID() << 32)
+		| frame.vpn;
+	    if (frame.process.getSwapSlot(frame.vpn) == -1)
+		numNew++;
+	}
+	sortCluster(count);
+
+	int slot = (numNew > 0) ? swap.allocate(numNew) : -1;
+	for (int i=0; i<count; i++) {
+	    Frame frame = frames[cluster[i]];
+	    if (frame.process.getSwapSlot(frame.vpn) == -1)
+		frame.process.setSwapSlot(frame.vpn, slot++);
+
+	    clusterKeys[i] = frame.process.getSwapSlot(frame.vpn);
+	}
+	sortCluster(count);
+
+	byte[] memory = Machine.processor().getMemory();
+	for (int i=0; i<count; i++) {
+	    Frame frame = frames[cluster[i]];
+	    System.arraycopy(memory, cluster[i]*pageSize, clusterData,
+			     i*pageSize, pageSize);
+	    clusterSlots[i] = (int) clusterKeys[i];
+	    clusterEntries[i] = frame.entry;
+
+	    // a write to the page from now on makes it dirty again
+	    frame.entry.dirty = false;
+	}
+
+	writingCluster = true;
+	memoryLock.release();
+	swap.write(clusterSlots, clusterData, count);
+	memoryLock.acquire();
+	writingCluster = false;
+
+	for (int i=0; i<count; i++) {
+	    int ppn = cluster[i];
+	    Frame frame = frames[ppn];
+
+	    // the process may have exited and freed the frame
+	    if (frame.entry != clusterEntries[i])
+		continue;
+
+	    frame.pinCount--;
+	    if (frame.entry.used || frame.entry.dirty) {
+		// in use again; it stays, and the policy sees it as new
+		policy.pageLoaded(ppn);
+	    }
+	    else {
+		evict(ppn);
+	    }
+	}
+    }
+
+    /**
+     * Write a dirty page of a mapped file back to the file, and free its
+     * frame if it is not used again while that happens. Like
+     * <tt>writeCluster()</tt>, this copies the page out and releases
+     * <tt>memoryLock</tt> during the write, leaving the page pinned and
+     * mapped.
+     *
+     * @param	ppn	the frame, pinned by <tt>pageOut()</tt>.
+     * @param	entry	the page table entry of the page when it was pinned.
+     */
+    private static void writeMappedPage(int ppn, TranslationEntry entry) {
+	Frame frame = frames[ppn];
+
+	// the frame may have been freed while the batch before was written
+	if (frame.entry != entry)
+	    return;
+
+	System.arraycopy(Machine.processor().getMemory(), ppn*pageSize,
+			 clusterData, 0, pageSize);
+	entry.dirty = false;
+
+	VMProcess process = frame.process;
+	int vpn = frame.vpn;
+
+	memoryLock.release();
+	process.writeMappedPage(vpn, clusterData, 0);
+	memoryLock.acquire();
+
+	if (frame.entry != entry)
+	    return;
+
+	frame.pinCount--;
+	if (entry.used || entry.dirty)
+	    policy.pageLoaded(ppn);
+	else
+	    evict(ppn);
+    }
+
+    /**
+     * Sort the first <i>count</i> frames of <tt>cluster</tt> by
+     * <tt>clusterKeys</tt>.
+     */
+    private static void sortCluster(int count) {
+	for (int i=1; i<count; i++) {
+	    int ppn = cluster[i];
+	    long key = clusterKeys[i];
+
+	    int j = i;
+	    for (; j>0 && clusterKeys[j-1] > key; j--) {
+		cluster[j] = cluster[j-1];
+		clusterKeys[j] = clusterKeys[j-1];
+	    }
+	    cluster[j] = ppn;
+	    clusterKeys[j] = key;
+	}
+    }
+
+    /**
+     * Take a frame away from the page it holds, writing the page to swap or
+     * its mapped file first if it is dirty, and make the frame available for
+     * reuse. A private page stays in the frame until it is reused.
+     */
+    private static void evict(int ppn) {
+	Frame frame = frames[ppn];
+	Lib.assertTrue(isEvictable(ppn));
+
+	numEvictions++;
+
+	if (frame.shared != null) {
+	    // every copy of the page is in the executable; just unmap it
+	    VMProcess current = currentVMProcess();
+	    for (VMProcess process : frame.shared.processes) {
+		if (process == current)
+		    process.invalidateTLBEntry(frame.vpn);
+
+		invertedPageTable.remove(process.getProcessID(), frame.vpn);
+		process.getPageTableEntry(frame.vpn).valid = false;
+	    }
+
+	    sharedPages.remove(frame.shared.key);
+	    frame.shared = null;
+
+	    policy.frameFreed(ppn);
+	    addFreePage(ppn);
+	    return;
+	}
+
+	if (frame.process == currentVMProcess())
+	    frame.process.invalidateTLBEntry(frame.vpn);
+
+	TranslationEntry entry = frame.entry;
+	if (entry.dirty)
+	    frame.process.savePage(frame.vpn, ppn);
+
+	invertedPageTable.remove(frame.process.getProcessID(), frame.vpn);
+
+	entry.valid = false;
+	entry.used = false;
+	entry.dirty = false;
+
+	frame.reclaimable = true;
+	reclaimablePages.insert(frame.process.getProcessID(), frame.vpn, ppn);
+	reclaimableFrames.add(ppn);
+	policy.frameFreed(ppn);
+    }
+
+    /**
+     * Return whether a frame holds a page that may be evicted.
+     */
+    static boolean isEvictable(int ppn) {
+	Frame frame = frames[ppn];
+	return ((frame.process != null || frame.shared != null) &&
+		!frame.reclaimable && frame.pinCount == 0);
+    }
+
+    /**
+     * Return whether the page in a frame has been referenced by any process
+     * since the last call, and clear its used bits.
+     */
+    static boolean testAndClearUsed(int ppn) {
+	Frame frame = frames[ppn];
+	if (frame.shared == null) {
+	    boolean used = frame.entry.used;
+	    frame.entry.used = false;
+	    return used;
+	}
+
+	boolean used = false;
+	for (VMProcess process : frame.shared.processes) {
+	    TranslationEntry entry = process.getPageTableEntry(frame.vpn);
+	    used |= entry.used;
+	    entry.used = false;
+	}
+	return used;
+    }
+
+    /**
+     * Return whether the page in a frame would have to be saved if it were
+     * evicted. Shared pages are never written, so they never are.
+     */
+    static boolean isDirty(int ppn) {
+	Frame frame = frames[ppn];
+	return (frame.shared == null && frame.entry.dirty);
+    }
+
+    /**
+     * Return the current process, or <tt>null</tt> if the current thread is
+     * not running a <tt>VMProcess</tt>.
+     */
+    private static VMProcess currentVMProcess() {
+	UserProcess process = currentProcess();
+	if (process instanceof VMProcess)
+	    return (VMProcess) process;
+	return null;
+    }
+
+    /**
+     * A physical frame, and the page it holds if it is in use: either a
+     * private page of one process, or a shared page of an executable.
+     */
+    private static class Frame {
+	/** The process whose private page is in this frame, or
+	 * <tt>null</tt>. */
+	VMProcess process = null;
+	/** The shared page in this frame, or <tt>null</tt>. */
+	SharedPage shared = null;
+	int vpn;
+	/** The page table entry of a private page, kept so that the
+	 * replacement policy need not go through the process to find it. */
+	TranslationEntry entry = null;
+	/** Whether the private page here has been evicted, and is only kept
+	 * until the frame is reused. */
+	boolean reclaimable = false;
+	/** The number of reasons the page may not be evicted right now. */
+	int pinCount = 0;
+    }
+
+    /** A cached page of an executable, and the processes that map it. */
+    private static class SharedPage {
+	SharedPage(String key, int ppn) {
+	    this.key = key;
+	    this.ppn = ppn;
+	}
+
+	String key;
+	int ppn;
+	/** Every process running the executable maps the page at the same
+	 * vpn. */
+	LinkedList<VMProcess> processes = new LinkedList<VMProcess>();
+    }
+
+    /** Held while changing the frame table or any process's resident set. */
+    static Lock memoryLock;
+
+    /** Which page of which process each frame holds. */
+    private static Frame[] frames;
+    /** Which frame holds each resident page. */
+    private static InvertedPageTable invertedPageTable;
+    /** Frames holding evicted private pages, in the order they were
+     * evicted. */
+    private static LinkedList<Integer> reclaimableFrames =
+	new LinkedList<Integer>();
+    /** Which of those frames holds each evicted page. */
+    private static InvertedPageTable reclaimablePages;
+    /** The shared pages in memory, by executable, section and page. */
+    private static HashMap<String, SharedPage> sharedPages =
+	new HashMap<String, SharedPage>();
+    private static ReplacementPolicy policy;
+
+    /** The backing store for pages that are not in memory. */
+    static SwapManager swap;
+
+    /** The page-out daemon frees frames when fewer than this many are
+     * free, from <tt>VMKernel.lowWaterMark</tt>... */
+    private static int lowWaterMark;
+    /** ...until this many are. */
+    private static int highWaterMark;
+    /** Woken when the page-out daemon is needed. */
+    private static Condition pageOutNeeded;
+    /** Woken when the page-out daemon has freed frames. */
+    private static Condition framesFreed;
+    /** Woken when a frame is unpinned, for the page-out daemon to try
+     * again when it found none to take. */
+    private static Condition framesUnpinned;
+    /** The number of threads in <tt>allocateFrame()</tt> waiting for the
+     * page-out daemon. */
+    private static int numFrameWaiters = 0;
+    /** The number of <tt>pinFrame()</tt> calls not yet undone. */
+    private static int numTransferPins = 0;
+
+    /** The most dirty pages written in one batch, from
+     * <tt>VMKernel.pageOutCluster</tt>. */
+    private static int clusterSize;
+    /** The frames in the batch being written, and their page table
+     * entries, slots, sort keys and contents. */
+    private static int[] cluster;
+    private static TranslationEntry[] clusterEntries;
+    private static int[] clusterSlots;
+    private static long[] clusterKeys;
+    private static byte[] clusterData;
+    /** The dirty pages of mapped files in the batch, and their page table
+     * entries. */
+    private static int[] mappedCluster;
+    private static TranslationEntry[] mappedEntries;
+    /** Whether the page-out daemon is writing a batch to swap. */
+    private static boolean writingCluster = false;
+
+    private static int numPageIns = 0, numEvictions = 0, numReclaims = 0;
+    private static int numFrameWaits = 0;
+    private static int numSharedMappings = 0, numCopiesOnWrite = 0;
+
     // dummy variables to make javac smarter
     private static VMProcess dummy1 = null;
 
+    /** The most pages one instruction can touch: the instruction itself,
+     * and the word it loads or stores. */
+    private static final int framesPerInstruction = 2;
+
+    private static final int pageSize = Processor.pageSize;
     private static final char dbgVM = 'v';
 }
@@ -5,6 +5,9 @@ import nachos.threads.*;
 import nachos.userprog.*;
 import nachos.vm.*;
 
+import java.util.Arrays;
+import java.util.LinkedList;
+
 /**
  * A <tt>UserProcess</tt> that supports demand-paging.
  */
@@ -14,6 +17,8 @@ public class VMProcess extends UserProcess {
      */
     public VMProcess() {
 	super();
+
+	maxPages = Config.getInteger("VMProcess.maxPages", 4096);
     }
 
     /**
@@ -22,6 +27,8 @@ public class VMProcess extends UserProcess {
      */
     public void saveState() {
 	super.saveState();
+
+	syncTLB();
     }
 
     /**
@@ -29,25 +36,266 @@ public class VMProcess extends UserProcess {
      * <tt>UThread.restoreState()</tt>.
      */
     public void restoreState() {
-	super.restoreState();
+	if (!Machine.processor().hasTLB()) {
+	    super.restoreState();
+	    return;
+	}
+
+	// the TLB holds the last process's translations
+	Processor processor = Machine.processor();
+	TranslationEntry invalid = new TranslationEntry();
+	for (int i=0; i<processor.getTLBSize(); i++)
+	    processor.writeTLBEntry(i, invalid);
     }
 
     /**
      * Initializes page tables for this process so that the executable can be
-     * demand-paged.
+     * demand-paged. Pages of COFF sections are shared with other processes
+     * running the same executable, so they are all mapped read-only; the
+     * pages of writable sections are copied on write.
      *
      * @return	<tt>true</tt> if successful.
      */
     protected boolean loadSections() {
-	return super.loadSections();
+	initializePageTables();
+
+	// pages are read from their section on first use
+	for (int s=0; s<coff.getNumSections(); s++) {
+	    CoffSection section = coff.getSection(s);
+
+	    Lib.debug(dbgProcess, "\tdemand-paging " + section.getName()
+		      + " section (" + section.getLength() + " pages)");
+
+	    for (int i=0; i<section.getLength(); i++) {
+		int vpn = section.getFirstVPN()+i;
+
+		sections[vpn] = section;
+		pageTable[vpn].readOnly = true;
+		copyOnWrite[vpn] = !section.isReadOnly();
+	    }
+	}
+
+	return true;
+    }
+
+    /**
+     * Give each of the <tt>numPages</tt> pages of this process a page
+     * table entry, not yet resident, which is filled with zeros when it is
+     * first used unless it is later given a section.
+     */
+    private void initializePageTables() {
+	pageTable = new TranslationEntry[numPages];
+	for (int vpn=0; vpn<numPages; vpn++)
+	    pageTable[vpn] = new TranslationEntry(vpn, -1, false, false, false,
+						  false);
+
+	swapSlots = new int[numPages];
+	Arrays.fill(swapSlots, -1);
+
+	copyOnWrite = new boolean[numPages];
+	mappedFiles = new MappedFile[numPages];
+	sections = new CoffSection[numPages];
     }
 
     /**
      * Release any resources allocated by <tt>loadSections()</tt>.
      */
     protected void unloadSections() {
-	super.unloadSections();
-    }    
+	freeMemory();
+
+	coff.close();
+    }
+
+    /**
+     * Give up this process's frames and swap slots.
+     */
+    private void freeMemory() {
+	VMKernel.memoryLock.acquire();
+
+	unpin();
+	VMKernel.freeFrames(this, numPages);
+
+	for (int vpn=0; vpn<numPages; vpn++) {
+	    if (swapSlots[vpn] != -1)
+		VMKernel.swap.free(swapSlots[vpn]);
+	}
+
+	VMKernel.memoryLock.release();
+    }
+
+    /**
+     * Make the page containing <tt>vaddr</tt> resident before copying to or
+     * from it. Runs never extend past the end of the page, since making the
+     * next page resident could evict this one. The page stays pinned until
+     * <tt>endTransfer()</tt>, so that it is still there when the caller
+     * copies. Writing to a shared page first makes a private copy of it.
+     */
+    protected int translateRun(int vaddr, int length, boolean write) {
+	if (vaddr < 0 || length <= 0)
+	    return 0;
+
+	int vpn = Processor.pageFromAddress(vaddr);
+	if (vpn >= numPages || pageTable[vpn] == null ||
+	    (write && pageTable[vpn].readOnly && !copyOnWrite[vpn]))
+	    return 0;
+
+	VMKernel.memoryLock.acquire();
+
+	unpin();
+	if (write && copyOnWrite[vpn])
+	    pinnedPPN = VMKernel.copyOnWrite(this, vpn);
+	else
+	    pinnedPPN = VMKernel.pageIn(this, vpn);
+	VMKernel.pinFrame(pinnedPPN);
+
+	VMKernel.memoryLock.release();
+
+	int pageLeft = pageSize - Processor.offsetFromAddress(vaddr);
+	int run = super.translateRun(vaddr, Math.min(length, pageLeft), write);
+
+	// the caller copies nothing, so it will not call endTransfer()
+	if (run == 0)
+	    endTransfer();
+	return run;
+    }
+
+    /**
+     * Unpin the page pinned by <tt>translateRun()</tt>, now that the copy is
+     * done.
+     */
+    protected void endTransfer() {
+	VMKernel.memoryLock.acquire();
+	unpin();
+	VMKernel.memoryLock.release();
+    }
+
+    /**
+     * Handle a syscall exception. Adds <tt>mmap()</tt> to the syscalls
+     * handled by <tt>UserProcess</tt>:
+     *
+     * <table>
+     * <tr><td>syscall#</td><td>syscall prototype</td></tr>
+     * <tr><td>10</td><td><tt>int  mmap(int fd, char *address);</tt></td></tr>
+     * </table>
+     *
+     * @param	syscall	the syscall number.
+     * @param	a0	the first syscall argument.
+     * @param	a1	the second syscall argument.
+     * @param	a2	the third syscall argument.
+     * @param	a3	the fourth syscall argument.
+     * @return	the value to be returned to the user.
+     */
+    public int handleSyscall(int syscall, int a0, int a1, int a2, int a3) {
+	switch (syscall) {
+	case syscallMmap:
+	    return handleMmap(a0, a1);
+	default:
+	    return super.handleSyscall(syscall, a0, a1, a2, a3);
+	}
+    }
+
+    /**
+     * Handle the mmap() system call: map the file open at <i>fd</i> into
+     * memory at <i>vaddr</i>, which must be page-aligned and clear of the
+     * rest of the address space. Pages are read from the file when they are
+     * first touched, and written back to it when they are evicted dirty and
+     * when <i>fd</i> is closed, including at exit.
+     *
+     * <p>
+     * The file's length is fixed when it is mapped; the map neither grows
+     * the file nor sees it grow. Each mapping has its own pages, so two
+     * mappings of one file do not see each other's changes until they are
+     * written back.
+     *
+     * <p>
+     * A map may not end past page <tt>VMProcess.maxPages</tt>, since the
+     * page tables grow to cover it.
+     *
+     * @return	the length of the file, or -1 if it could not be mapped.
+     */
+    private int handleMmap(int fd, int vaddr) {
+	if (vaddr < 0 || Processor.offsetFromAddress(vaddr) != 0)
+	    return -1;
+
+	OpenFile file = getMappableFile(fd);
+	if (file == null)
+	    return -1;
+
+	int length = file.length();
+	if (length < 0 || (long) vaddr + length > 0x80000000L)
+	    return -1;
+
+	int firstVPN = Processor.pageFromAddress(vaddr);
+	int count = (int) (((long) length + pageSize - 1) / pageSize);
+	if (firstVPN+count > Math.max(numPages, maxPages))
+	    return -1;
+
+	for (int vpn=firstVPN; vpn<Math.min(firstVPN+count, numPages); vpn++) {
+	    if (pageTable[vpn] != null)
+		return -1;
+	}
+
+	if (firstVPN+count > numPages)
+	    growAddressSpace(firstVPN+count);
+
+	MappedFile mapping = new MappedFile(file, firstVPN, count, length);
+	for (int vpn=firstVPN; vpn<firstVPN+count; vpn++) {
+	    pageTable[vpn] = new TranslationEntry(vpn, -1, false, false, false,
+						  false);
+	    mappedFiles[vpn] = mapping;
+	}
+
+	mappings.add(mapping);
+	setMapped(fd);
+	return length;
+    }
+
+    /**
+     * Extend the page tables to cover <i>newNumPages</i> pages. The new
+     * pages are not part of the address space until something is mapped
+     * there.
+     */
+    private void growAddressSpace(int newNumPages) {
+	pageTable = Arrays.copyOf(pageTable, newNumPages);
+	sections = Arrays.copyOf(sections, newNumPages);
+	copyOnWrite = Arrays.copyOf(copyOnWrite, newNumPages);
+	mappedFiles = Arrays.copyOf(mappedFiles, newNumPages);
+
+	swapSlots = Arrays.copyOf(swapSlots, newNumPages);
+	Arrays.fill(swapSlots, numPages, newNumPages, -1);
+
+	numPages = newNumPages;
+
+	if (!Machine.processor().hasTLB())
+	    Machine.processor().setPageTable(pageTable);
+    }
+
+    /**
+     * Write back the dirty pages of a file mapped by <tt>mmap()</tt>, and
+     * remove the mapping. Called when its descriptor is closed.
+     */
+    protected void unmapFile(OpenFile file) {
+	MappedFile mapping = null;
+	for (MappedFile m : mappings) {
+	    if (m.file == file)
+		mapping = m;
+	}
+	Lib.assertTrue(mapping != null);
+	mappings.remove(mapping);
+
+	VMKernel.memoryLock.acquire();
+
+	unpin();
+	for (int i=0; i<mapping.numPages; i++) {
+	    int vpn = mapping.firstVPN + i;
+
+	    VMKernel.unmapPage(this, vpn);
+	    pageTable[vpn] = null;
+	    mappedFiles[vpn] = null;
+	}
+
+	VMKernel.memoryLock.release();
+    }
 
     /**
      * Handle a user exception. Called by
@@ -61,12 +309,420 @@ public class VMProcess extends UserProcess {
 	Processor processor = Machine.processor();
 
 	switch (cause) {
+	case Processor.exceptionTLBMiss:
+	case Processor.exceptionPageFault:
+	    if (!handlePageMiss(processor.readRegister(Processor.regBadVAddr)))
+		super.handleException(cause);
+	    break;
+
+	case Processor.exceptionReadOnly:
+	    if (!handleWriteFault(processor.readRegister(Processor.regBadVAddr)))
+		super.handleException(cause);
+	    break;
+
 	default:
 	    super.handleException(cause);
 	    break;
 	}
     }
-	
+
+    /**
+     * Handle a TLB miss or page fault: make the page resident, and, if there
+     * is a TLB, load its translation.
+     *
+     * @param	vaddr	the virtual address that missed.
+     * @return	<tt>false</tt> if the address is not in this process.
+     */
+    private boolean handlePageMiss(int vaddr) {
+	int vpn = Processor.pageFromAddress(vaddr);
+	if (vpn >= numPages || pageTable[vpn] == null)
+	    return false;
+
+	VMKernel.memoryLock.acquire();
+
+	VMKernel.pageIn(this, vpn);
+	if (Machine.processor().hasTLB())
+	    loadTLBEntry(pageTable[vpn]);
+
+	VMKernel.memoryLock.release();
+	return true;
+    }
+
+    /**
+     * Handle a write to a read-only page: if the page is shared copy on
+     * write, give this process its own copy and let the write go ahead.
+     *
+     * @param	vaddr	the virtual address written to.
+     * @return	<tt>false</tt> if the page really is read-only.
+     */
+    private boolean handleWriteFault(int vaddr) {
+	int vpn = Processor.pageFromAddress(vaddr);
+	if (vpn >= numPages || !copyOnWrite[vpn])
+	    return false;
+
+	VMKernel.memoryLock.acquire();
+
+	VMKernel.copyOnWrite(this, vpn);
+	if (Machine.processor().hasTLB())
+	    loadTLBEntry(pageTable[vpn]);
+
+	VMKernel.memoryLock.release();
+	return true;
+    }
+
+    /**
+     * Put a translation in the TLB, in an empty slot if there is one.
+     */
+    private void loadTLBEntry(TranslationEntry entry) {
+	Processor processor = Machine.processor();
+	int tlbSize = processor.getTLBSize();
+
+	int slot = -1;
+	for (int i=0; i<tlbSize && slot == -1; i++) {
+	    if (!processor.readTLBEntry(i).valid)
+		slot = i;
+	}
+
+	if (slot == -1) {
+	    slot = nextTLBSlot;
+	    nextTLBSlot = (nextTLBSlot+1) % tlbSize;
+	    syncTLBEntry(slot);
+	}
+
+	TranslationEntry tlbEntry = new TranslationEntry(entry);
+	tlbEntry.used = false;
+	tlbEntry.dirty = false;
+	processor.writeTLBEntry(slot, tlbEntry);
+    }
+
+    /**
+     * Fold the used and dirty bits the processor has set in the TLB into
+     * this process's page table, and clear them in the TLB, so that the page
+     * table shows every use since the last call. This process must be the
+     * current one.
+     */
+    void syncTLB() {
+	if (!Machine.processor().hasTLB())
+	    return;
+
+	for (int i=0; i<Machine.processor().getTLBSize(); i++)
+	    syncTLBEntry(i);
+    }
+
+    private void syncTLBEntry(int slot) {
+	Processor processor = Machine.processor();
+
+	TranslationEntry tlbEntry = processor.readTLBEntry(slot);
+	if (!tlbEntry.valid || !(tlbEntry.used || tlbEntry.dirty))
+	    return;
+
+	TranslationEntry entry = pageTable[tlbEntry.vpn];
+	entry.used |= tlbEntry.used;
+	entry.dirty |= tlbEntry.dirty;
+
+	tlbEntry.used = false;
+	tlbEntry.dirty = false;
+	processor.writeTLBEntry(slot, tlbEntry);
+    }
+
+    /**
+     * Remove the translation for a page from the TLB, keeping its used and
+     * dirty bits. This process must be the current one.
+     */
+    void invalidateTLBEntry(int vpn) {
+	Processor processor = Machine.processor();
+	if (!processor.hasTLB())
+	    return;
+
+	for (int i=0; i<processor.getTLBSize(); i++) {
+	    TranslationEntry tlbEntry = processor.readTLBEntry(i);
+	    if (tlbEntry.valid && tlbEntry.vpn == vpn) {
+		syncTLBEntry(i);
+		tlbEntry.valid = false;
+		processor.writeTLBEntry(i, tlbEntry);
+	    }
+	}
+    }
+
+    /**
+     * Return the page table entry for a page of this process.
+     */
+    TranslationEntry getPageTableEntry(int vpn) {
+	return pageTable[vpn];
+    }
+
+    /**
+     * Return the key under which a page of this process is shared with
+     * other processes running the same executable: the executable, section
+     * and page within the section. Returns <tt>null</tt> if the page is
+     * private to this process.
+     */
+    String getSharedPageKey(int vpn) {
+	CoffSection section = sections[vpn];
+	if (section == null || !(section.isReadOnly() || copyOnWrite[vpn]))
+	    return null;
+
+	return executableName + ":" + section.getName() + ":"
+	    + (vpn - section.getFirstVPN());
+    }
+
+    /**
+     * Return whether a page belongs to a file mapped by <tt>mmap()</tt>.
+     */
+    boolean isMapped(int vpn) {
+	return (mappedFiles[vpn] != null);
+    }
+
+    /**
+     * Return the swap slot holding a page, or -1 if it has none.
+     */
+    int getSwapSlot(int vpn) {
+	return swapSlots[vpn];
+    }
+
+    /**
+     * Give a page a swap slot, which the page is written to when it is next
+     * written out, and freed when this process exits.
+     */
+    void setSwapSlot(int vpn, int slot) {
+	Lib.assertTrue(swapSlots[vpn] == -1);
+	swapSlots[vpn] = slot;
+    }
+
+    /**
+     * Stop sharing a page of a writable section, once this process has its
+     * own copy.
+     */
+    void makePagePrivate(int vpn) {
+	copyOnWrite[vpn] = false;
+	pageTable[vpn].readOnly = false;
+    }
+
+    /**
+     * Fill a frame with a page of this process: from swap if it has been
+     * written there, else from its mapped file or COFF section, else with
+     * zeros.
+     */
+    void loadPage(int vpn, int ppn) {
+	Lib.debug(dbgVM, "\tpage in " + vpn + " -> " + ppn);
+
+	byte[] memory = Machine.processor().getMemory();
+
+	if (swapSlots[vpn] != -1) {
+	    VMKernel.swap.read(swapSlots[vpn], ppn);
+	}
+	else if (mappedFiles[vpn] != null) {
+	    MappedFile mapping = mappedFiles[vpn];
+	    int amount = mapping.file.read((vpn - mapping.firstVPN)*pageSize,
+					   memory, ppn*pageSize, pageSize);
+
+	    // the last page runs past the end of the file
+	    Arrays.fill(memory, ppn*pageSize + Math.max(amount, 0),
+			(ppn+1)*pageSize, (byte) 0);
+	}
+	else if (sections[vpn] != null) {
+	    CoffSection section = sections[vpn];
+	    section.loadPage(vpn - section.getFirstVPN(), ppn);
+	}
+	else {
+	    Arrays.fill(memory, ppn*pageSize, (ppn+1)*pageSize, (byte) 0);
+	}
+    }
+
+    /**
+     * Write a dirty page of this process back to its mapped file, or else
+     * to its swap slot.
+     */
+    void savePage(int vpn, int ppn) {
+	Lib.debug(dbgVM, "\tpage out " + vpn + " <- " + ppn);
+
+	if (mappedFiles[vpn] != null) {
+	    writeMappedPage(vpn, Machine.processor().getMemory(), ppn*pageSize);
+	    return;
+	}
+
+	if (swapSlots[vpn] == -1)
+	    swapSlots[vpn] = VMKernel.swap.allocate(1);
+
+	VMKernel.swap.write(swapSlots[vpn], ppn);
+    }
+
+    /**
+     * Write a page of a mapped file back to the file, from <i>data</i>
+     * starting at <i>offset</i>. The page stays mapped until the write is
+     * done, as long as its frame is pinned, so the caller need not hold
+     * <tt>memoryLock</tt>.
+     */
+    void writeMappedPage(int vpn, byte[] data, int offset) {
+	MappedFile mapping = mappedFiles[vpn];
+	int fileOffset = (vpn - mapping.firstVPN)*pageSize;
+	int amount = Math.min(pageSize, mapping.length - fileOffset);
+
+	mapping.file.write(fileOffset, data, offset, amount);
+    }
+
+    /**
+     * Release the page pinned by the last transfer, if it is still pinned.
+     * The caller must hold <tt>memoryLock</tt>.
+     */
+    private void unpin() {
+	if (pinnedPPN != -1) {
+	    VMKernel.unpinFrame(pinnedPPN);
+	    pinnedPPN = -1;
+	}
+    }
+
+    /**
+     * Tests whether <tt>mmap()</tt> is working, with a process that has no
+     * executable, just enough pages of zeros to push every page of a mapped
+     * file out of memory. Checks the calls that must fail, that pages are
+     * read when first touched and zero-filled past the end of the file, and
+     * that changes reach the file when pages are evicted and when the file
+     * is closed.
+     */
+    public static void selfTest() {
+	final String name = "mmap.tst";
+	final int numMapped = 5;
+	final int length = numMapped*pageSize - 100;
+
+	byte[] data = new byte[length];
+	for (int i=0; i<length; i++)
+	    data[i] = (byte) (i % 251);
+
+	OpenFile file = ThreadedKernel.fileSystem.open(name, true);
+	Lib.assertTrue(file != null && file.write(data, 0, length) == length);
+	file.close();
+
+	VMProcess process = new VMProcess();
+	process.numPages = 3*Machine.processor().getNumPhysPages();
+	process.initializePageTables();
+
+	byte[] nameBytes = (name + "\0").getBytes();
+	Lib.assertTrue(process.writeVirtualMemory(0, nameBytes) ==
+		       nameBytes.length);
+	int fd = process.handleSyscall(syscallOpen, 0, 0, 0, 0);
+	Lib.assertTrue(fd >= 2);
+
+	// leave a page out of the address space between the two
+	int gapVPN = process.numPages;
+	int firstVPN = gapVPN+1;
+	int vaddr = firstVPN*pageSize;
+
+	Lib.assertTrue(process.handleMmap(fd, vaddr+1) == -1);
+	Lib.assertTrue(process.handleMmap(fd, 0) == -1);
+	Lib.assertTrue(process.handleMmap(1, vaddr) == -1);
+
+	process.maxPages = firstVPN+numMapped-1;
+	Lib.assertTrue(process.handleMmap(fd, vaddr) == -1);
+	Lib.assertTrue(process.numPages == gapVPN);
+	process.maxPages = firstVPN+numMapped;
+
+	Lib.assertTrue(process.handleMmap(fd, vaddr) == length);
+	Lib.assertTrue(process.numPages == firstVPN+numMapped);
+	Lib.assertTrue(process.handleMmap(fd, vaddr + 2*numMapped*pageSize)
+		       == -1);
+	Lib.assertTrue(process.handleSyscall(syscallRead, fd, 0, 1, 0) == -1);
+
+	for (int vpn=firstVPN; vpn<process.numPages; vpn++)
+	    Lib.assertTrue(!process.pageTable[vpn].valid);
+
+	byte[] buffer = new byte[numMapped*pageSize];
+	Lib.assertTrue(process.readVirtualMemory(vaddr, buffer) ==
+		       buffer.length);
+	for (int i=0; i<buffer.length; i++)
+	    Lib.assertTrue(buffer[i] == (i < length ? data[i] : 0));
+
+	Lib.assertTrue(process.readVirtualMemory(gapVPN*pageSize, buffer, 0, 1)
+		       == 0);
+
+	// change every page, and write past the end of the file
+	for (int i=0; i<numMapped; i++) {
+	    int offset = i*pageSize + i;
+	    data[offset] = (byte) ~data[offset];
+	    process.writeVirtualMemory(vaddr+offset, data, offset, 1);
+	}
+	process.writeVirtualMemory(vaddr+length, new byte[] { 1 });
+
+	// write to every page of zeros, evicting the mapped pages
+	byte[] ones = new byte[pageSize];
+	Arrays.fill(ones, (byte) 1);
+	for (int vpn=0; vpn<gapVPN; vpn++)
+	    process.writeVirtualMemory(vpn*pageSize, ones);
+
+	byte[] contents = new byte[length];
+	file = ThreadedKernel.fileSystem.open(name, false);
+	Lib.assertTrue(file.read(0, contents, 0, length) == length);
+	file.close();
+
+	int numEvicted = 0;
+	for (int i=0; i<numMapped; i++) {
+	    if (process.pageTable[firstVPN+i].valid)
+		continue;
+
+	    numEvicted++;
+	    int offset = i*pageSize;
+	    int amount = Math.min(pageSize, length-offset);
+	    Lib.assertTrue(Arrays.equals(
+		Arrays.copyOfRange(contents, offset, offset+amount),
+		Arrays.copyOfRange(data, offset, offset+amount)));
+	}
+	Lib.assertTrue(numEvicted > 0);
+
+	Lib.assertTrue(process.readVirtualMemory(vaddr, buffer, 0, length) ==
+		       length);
+	Lib.assertTrue(Arrays.equals(Arrays.copyOf(buffer, length), data));
+
+	Lib.assertTrue(process.handleSyscall(syscallClose, fd, 0, 0, 0) == 0);
+	Lib.assertTrue(process.readVirtualMemory(vaddr, buffer, 0, 1) == 0);
+
+	file = ThreadedKernel.fileSystem.open(name, false);
+	Lib.assertTrue(file.length() == length);
+	Lib.assertTrue(file.read(0, contents, 0, length) == length);
+	file.close();
+	Lib.assertTrue(Arrays.equals(contents, data));
+
+	process.freeMemory();
+	process.discard();
+	ThreadedKernel.fileSystem.remove(name);
+    }
+
+    /** A file mapped into memory by <tt>mmap()</tt>. */
+    private static class MappedFile {
+	MappedFile(OpenFile file, int firstVPN, int numPages, int length) {
+	    this.file = file;
+	    this.firstVPN = firstVPN;
+	    this.numPages = numPages;
+	    this.length = length;
+	}
+
+	OpenFile file;
+	int firstVPN, numPages;
+	/** The length of the file when it was mapped. */
+	int length;
+    }
+
+    /** The swap slot holding each page, or -1 if it has none. */
+    private int[] swapSlots;
+    /** The COFF section each page is loaded from, or <tt>null</tt>. */
+    private CoffSection[] sections;
+    /** Which pages are writable but still shared with other processes. */
+    private boolean[] copyOnWrite;
+    /** The mapped file each page is loaded from, or <tt>null</tt>. Pages
+     * with a <tt>null</tt> page table entry are not in the address space. */
+    private MappedFile[] mappedFiles;
+    /** The files mapped by <tt>mmap()</tt>. */
+    private LinkedList<MappedFile> mappings = new LinkedList<MappedFile>();
+    /** How far <tt>mmap()</tt> may grow the address space, in pages; see
+     * <tt>VMProcess.maxPages</tt>. */
+    private int maxPages;
+    /** The frame pinned by the last transfer, or -1. */
+    private int pinnedPPN = -1;
+
+    /** The TLB slot to replace next when none is empty. */
+    private static int nextTLBSlot = 0;
+
+    private static final int syscallMmap = 10;
+
     private static final int pageSize = Processor.pageSize;
     private static final char dbgProcess = 'a';
     private static final char dbgVM = 'v';
@@ -0,0 +1,67 @@
+package nachos.vm;
+
+import nachos.machine.*;
+
+/**
+ * The WSClock algorithm. Like the clock algorithm, but each frame also
+ * remembers when its page was last seen to be used, and a page used within
+ * the last <tt>WSClockPolicy.window</tt> ticks is in its process's working
+ * set and is passed over. Of the pages outside every working set, clean
+ * ones are preferred, since they can be evicted without a swap write.
+ */
+public class WSClockPolicy extends ReplacementPolicy {
+    /**
+     * Allocate a new WSClock policy.
+     */
+    public WSClockPolicy() {
+	window = Config.getInteger("WSClockPolicy.window", 10000);
+	Lib.assertTrue(window >= 0);
+    }
+
+    public void initialize(int numFrames) {
+	super.initialize(numFrames);
+
+	lastUsed = new long[numFrames];
+    }
+
+    public void pageLoaded(int ppn) {
+	lastUsed[ppn] = Machine.timer().getTime();
+    }
+
+    public int findVictim() {
+	long time = Machine.timer().getTime();
+	int oldDirty = -1, oldest = -1;
+
+	for (int i=0; i<numFrames; i++) {
+	    int ppn = hand;
+	    hand = (hand+1) % numFrames;
+
+	    if (!isEvictable(ppn))
+		continue;
+
+	    if (testAndClearUsed(ppn)) {
+		lastUsed[ppn] = time;
+	    }
+	    else if (time - lastUsed[ppn] > window) {
+		if (!isDirty(ppn))
+		    return ppn;
+		if (oldDirty == -1)
+		    oldDirty = ppn;
+	    }
+
+	    if (oldest == -1 || lastUsed[ppn] < lastUsed[oldest])
+		oldest = ppn;
+	}
+
+	// no clean page outside the working sets, so pay for a write, or
+	// failing that, shrink the working set that has gone longest unused
+	if (oldDirty != -1)
+	    return oldDirty;
+	return oldest;
+    }
+
+    private int hand = 0;
+    private long window;
+    /** The time each frame's page was loaded or last seen to be used. */
+    private long[] lastUsed;
+}